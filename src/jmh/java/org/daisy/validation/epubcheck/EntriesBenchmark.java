@@ -0,0 +1,109 @@
+package org.daisy.validation.epubcheck;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.google.common.io.Closeables;
+
+/**
+ * Cost of reading the entries of an EPUB and of normalizing the reported file
+ * names, across entry counts.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class EntriesBenchmark {
+
+	private static final byte[] CONTENT = new byte[1024];
+
+	@Param({ "10", "100", "1000", "10000" })
+	public int entryCount;
+
+	private File zip;
+	private List<String> entries;
+	private EpubEntryIndex index;
+	private String[] filenames;
+	private int next;
+
+	@Setup
+	public void setUp() throws IOException {
+		zip = File.createTempFile("bench", ".epub");
+		ZipOutputStream out = new ZipOutputStream(new FileOutputStream(zip));
+		try {
+			for (int i = 0; i < entryCount; i++) {
+				out.putNextEntry(new ZipEntry(entry(i)));
+				out.write(CONTENT);
+				out.closeEntry();
+			}
+		} finally {
+			Closeables.closeQuietly(out);
+		}
+		entries = Utils.getEntries(zip);
+		index = EpubEntryIndex.read(zip);
+		filenames = new String[256];
+		for (int i = 0; i < filenames.length; i++) {
+			filenames[i] = "/tmp/book.epub/" + entry(i * 7919 % entryCount);
+		}
+	}
+
+	@TearDown
+	public void tearDown() {
+		zip.delete();
+	}
+
+	private static String entry(int i) {
+		return String.format("EPUB/content/chapter%05d.xhtml", i);
+	}
+
+	private String nextFilename() {
+		next = (next + 1) % filenames.length;
+		return filenames[next];
+	}
+
+	@Benchmark
+	public List<String> getEntries() {
+		return Utils.getEntries(zip);
+	}
+
+	@Benchmark
+	public String normalizeFilenameList() {
+		return Utils.normalizeFilename(entries, nextFilename());
+	}
+
+	@Benchmark
+	public String normalizeFilenameIndex() {
+		return Utils.normalizeFilename(index, nextFilename());
+	}
+
+	/**
+	 * Builds the index with its lookup trie; run with <code>-prof gc</code>,
+	 * the allocated bytes per operation are about its memory use.
+	 */
+	@Benchmark
+	public EpubEntryIndex buildIndex() {
+		EpubEntryIndex index = EpubEntryIndex.of(entries);
+		index.normalize(filenames[0]);
+		return index;
+	}
+}
@@ -0,0 +1,58 @@
+package org.daisy.validation.epubcheck;
+
+import java.io.ByteArrayInputStream;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * End-to-end cost of an invocation: the {@link DataPump} reading an
+ * in-memory output, and the {@link CommandExecutor} running a stub process
+ * which prints a canned output (see {@link SyntheticOutput#main(String[])}).
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class InvocationBenchmark {
+
+	@Param({ "10", "1000", "100000" })
+	public int lineCount;
+
+	private byte[] output;
+	private CommandExecutor<List<Issue>> executor;
+
+	@Setup
+	public void setUp() {
+		output = SyntheticOutput.bytes(lineCount);
+		executor = new CommandExecutor<List<Issue>>("java", "-cp",
+				System.getProperty("java.class.path"),
+				SyntheticOutput.class.getName(), String.valueOf(lineCount));
+	}
+
+	@Benchmark
+	public List<Issue> dataPump() {
+		StatefulParser parser = new StatefulParser(null);
+		new DataPump<List<Issue>>(new ByteArrayInputStream(output), parser)
+				.run();
+		return parser.getResult();
+	}
+
+	@Benchmark
+	public List<Issue> commandExecutor() throws Exception {
+		return executor.run(new StatefulParser(null), 1L, TimeUnit.MINUTES);
+	}
+}
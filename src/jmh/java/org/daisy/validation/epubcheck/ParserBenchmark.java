@@ -0,0 +1,84 @@
+package org.daisy.validation.epubcheck;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.google.common.base.Charsets;
+import com.google.common.base.Joiner;
+
+/**
+ * Throughput of the {@link StatefulParser} on synthetic outputs, with the
+ * single-pass scanners and with the regex chain only. The <code>read</code>
+ * benchmarks also decode the output with the {@link Utf8LineReader}, and pass
+ * the lines to the parser as reused character sequences or as strings.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ParserBenchmark {
+
+	@Param({ "10", "1000", "100000" })
+	public int lineCount;
+
+	@Param({ "false", "true" })
+	public boolean regexOnly;
+
+	private List<String> lines;
+	private byte[] output;
+
+	@Setup
+	public void setUp() {
+		lines = SyntheticOutput.lines(lineCount);
+		output = Joiner.on('\n').join(lines).getBytes(Charsets.UTF_8);
+	}
+
+	@Benchmark
+	public List<Issue> parse() {
+		StatefulParser parser = new StatefulParser(null, null, regexOnly);
+		for (String line : lines) {
+			parser.processLine(line);
+		}
+		return parser.getResult();
+	}
+
+	@Benchmark
+	public List<Issue> readChars() throws IOException {
+		StatefulParser parser = new StatefulParser(null, null, regexOnly);
+		Utf8LineReader reader = new Utf8LineReader(new ByteArrayInputStream(
+				output));
+		CharSequence line;
+		while ((line = reader.readLine()) != null) {
+			parser.processChars(line);
+		}
+		return parser.getResult();
+	}
+
+	@Benchmark
+	public List<Issue> readStrings() throws IOException {
+		StatefulParser parser = new StatefulParser(null, null, regexOnly);
+		Utf8LineReader reader = new Utf8LineReader(new ByteArrayInputStream(
+				output));
+		CharSequence line;
+		while ((line = reader.readLine()) != null) {
+			parser.processLine(line.toString());
+		}
+		return parser.getResult();
+	}
+}
@@ -0,0 +1,58 @@
+package org.daisy.validation.epubcheck;
+
+import java.util.List;
+
+import com.google.common.base.Charsets;
+import com.google.common.base.Joiner;
+import com.google.common.collect.Lists;
+
+/**
+ * Generates EPUBCheck outputs of a given number of lines, with the mix of
+ * lines of a real report. Also used as a stub EPUBCheck process printing the
+ * generated output.
+ */
+public final class SyntheticOutput {
+
+	private static final String[] ISSUES = {
+			"ERROR(RSC-012): book.epub/EPUB/chapter%05d.xhtml(20,46): Fragment identifier is not defined.",
+			"USAGE(ACC-007): book.epub/EPUB/image%05d.svg(-1,-1): Content Documents do not use 'epub:type' attributes for semantic inflection.",
+			"WARNING(OPF-003): book.epub/EPUB/item%05d.css(12): Item exists in the EPUB, but is not declared in the OPF manifest.",
+			"USAGE(CSS-022): book.epub/EPUB/style%05d.css(2,5): CSS selector specifies global margin setting.",
+			"ERROR(PKG-006): book.epub/entry%05d: Mimetype file entry is missing or is not the first file in the archive." };
+
+	private SyntheticOutput() {
+	}
+
+	/**
+	 * Returns the lines of an output with the given number of lines.
+	 */
+	public static List<String> lines(int count) {
+		List<String> lines = Lists.newArrayListWithCapacity(count);
+		lines.add("Validating using EPUB version 3.0.1 rules.");
+		while (lines.size() < count - 4) {
+			int i = lines.size();
+			lines.add(String.format(ISSUES[i % ISSUES.length], i));
+		}
+		lines.add("");
+		lines.add("Check finished with errors");
+		lines.add("Messages: 0 fatal / 2 errors / 0 warnings / 0 info");
+		lines.add("EPUBCheck completed");
+		return lines.subList(0, count);
+	}
+
+	/**
+	 * Returns the bytes of an output with the given number of lines.
+	 */
+	public static byte[] bytes(int count) {
+		return (Joiner.on('\n').join(lines(count)) + '\n')
+				.getBytes(Charsets.UTF_8);
+	}
+
+	/**
+	 * Prints an output with the number of lines given as first argument.
+	 */
+	public static void main(String[] args) throws Exception {
+		System.out.write(bytes(Integer.parseInt(args[0])));
+		System.out.flush();
+	}
+}
@@ -0,0 +1,174 @@
+package org.daisy.validation.epubcheck;
+
+import java.io.File;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import org.daisy.validation.epubcheck.Issue.Type;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.common.base.Preconditions;
+import com.google.common.collect.Lists;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.MoreExecutors;
+
+/**
+ * Validates a (possibly lazily produced) sequence of EPUBs with a bounded
+ * number of validations in flight.
+ * <p>
+ * The input is only pulled when a validation slot is free, so that a slow
+ * validation pool applies backpressure to the producer. Results are delivered
+ * to a {@link Listener} on the calling thread, either in completion order or
+ * in input order. Validations run in the {@link Priority#BULK} lane.
+ */
+public final class BatchValidator {
+
+	private static final Logger LOG = LoggerFactory
+			.getLogger(BatchValidator.class);
+
+	/**
+	 * Receives the result of each validation of a batch.
+	 */
+	public static interface Listener {
+		void onResult(File epub, List<Issue> issues);
+	}
+
+	/**
+	 * Aggregate statistics of a batch.
+	 */
+	public static final class Stats {
+		/** The number of validated EPUBs. */
+		public final int fileCount;
+		/** The total number of issues. */
+		public final long issueCount;
+		/** The elapsed time, in milliseconds. */
+		public final long elapsedMillis;
+
+		private Stats(int fileCount, long issueCount, long elapsedMillis) {
+			this.fileCount = fileCount;
+			this.issueCount = issueCount;
+			this.elapsedMillis = elapsedMillis;
+		}
+
+		/**
+		 * The number of validated EPUBs per second.
+		 */
+		public double throughput() {
+			return elapsedMillis == 0 ? fileCount : fileCount * 1000.0
+					/ elapsedMillis;
+		}
+
+		@Override
+		public String toString() {
+			return String.format("%d files, %d issues in %d ms (%.2f files/s)",
+					fileCount, issueCount, elapsedMillis, throughput());
+		}
+	}
+
+	private static final class Pending {
+		private final File epub;
+		private final ListenableFuture<List<Issue>> result;
+
+		private Pending(File epub, ListenableFuture<List<Issue>> result) {
+			this.epub = epub;
+			this.result = result;
+		}
+	}
+
+	private final EpubCheckInvoker invoker;
+	private final int maxInFlight;
+
+	/**
+	 * Creates a batch validator.
+	 *
+	 * @param invoker
+	 *            the invoker running the validations
+	 * @param maxInFlight
+	 *            the maximum number of submitted but not yet delivered
+	 *            validations
+	 */
+	public BatchValidator(EpubCheckInvoker invoker, int maxInFlight) {
+		Preconditions.checkArgument(maxInFlight > 0,
+				"The number of validations in flight must be positive");
+		this.invoker = Preconditions.checkNotNull(invoker);
+		this.maxInFlight = maxInFlight;
+	}
+
+	/**
+	 * Validates all the given EPUBs and blocks until all the results have
+	 * been delivered to the listener. If the calling thread is interrupted or
+	 * the listener throws an exception, the validations in flight are
+	 * cancelled.
+	 *
+	 * @param epubs
+	 *            the EPUBs to validate, only pulled when a slot is free
+	 * @param listener
+	 *            the listener receiving the results, on the calling thread
+	 * @param ordered
+	 *            whether results are delivered in input order (otherwise in
+	 *            completion order)
+	 * @return the aggregate statistics of the batch
+	 */
+	public Stats run(Iterator<File> epubs, Listener listener, boolean ordered)
+			throws InterruptedException {
+		Preconditions.checkNotNull(epubs);
+		Preconditions.checkNotNull(listener);
+		long start = System.nanoTime();
+		int fileCount = 0;
+		long issueCount = 0;
+		Deque<Pending> inFlight = new ArrayDeque<Pending>();
+		final BlockingQueue<Pending> completed = new LinkedBlockingQueue<Pending>();
+		try {
+			while (epubs.hasNext() || !inFlight.isEmpty()) {
+				if (epubs.hasNext() && inFlight.size() < maxInFlight) {
+					File epub = epubs.next();
+					final Pending pending = new Pending(epub,
+							invoker.validateAsync(epub, Priority.BULK, null));
+					inFlight.addLast(pending);
+					if (!ordered) {
+						pending.result.addListener(new Runnable() {
+							@Override
+							public void run() {
+								completed.add(pending);
+							}
+						}, MoreExecutors.sameThreadExecutor());
+					}
+					continue;
+				}
+				Pending done = ordered ? inFlight.getFirst() : completed.take();
+				List<Issue> issues = get(done);
+				inFlight.remove(done);
+				fileCount++;
+				issueCount += issues.size();
+				listener.onResult(done.epub, issues);
+			}
+		} finally {
+			// when interrupted or when the listener fails
+			for (Pending pending : inFlight) {
+				pending.result.cancel(true);
+			}
+		}
+		Stats stats = new Stats(fileCount, issueCount,
+				TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start));
+		LOG.info("Batch validation done: {}", stats);
+		return stats;
+	}
+
+	private static List<Issue> get(Pending pending) throws InterruptedException {
+		try {
+			return pending.result.get();
+		} catch (ExecutionException e) {
+			return Lists.newArrayList(new Issue(Type.INTERNAL_ERROR, e
+					.getCause().getClass().getSimpleName()
+					+ " - "
+					+ e.getCause().getMessage()));
+		}
+	}
+}
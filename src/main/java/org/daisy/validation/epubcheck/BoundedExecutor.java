@@ -0,0 +1,365 @@
+package org.daisy.validation.epubcheck;
+
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.EnumMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.daisy.validation.epubcheck.Configuration.QueuePolicy;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.common.base.Preconditions;
+import com.google.common.base.Supplier;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.ListenableFutureTask;
+import com.google.common.util.concurrent.MoreExecutors;
+
+/**
+ * A fixed-size thread pool with a bounded admission queue and priority lanes.
+ * <p>
+ * Submitted tasks wait in the lane of their {@link Priority}, and are started
+ * when a thread is free: interactive tasks first, then bulk tasks as long as
+ * they don't use the threads reserved for interactive tasks. Within a lane,
+ * tasks with different tenant keys are started in turn, so that a tenant with
+ * many tasks doesn't delay the others; tasks of a tenant start in submission
+ * order.
+ * <p>
+ * When the number of waiting tasks reaches the capacity, a new task is handled
+ * according to the {@link QueuePolicy}: it is rejected, the caller blocks
+ * until there is room in the queue, or the oldest waiting task of the lowest
+ * priority is shed. Rejected and shed tasks are not run; their future
+ * completes with the result of their fallback, on the submitting thread.
+ * <p>
+ * The pool is resized in place, so that waiting and running tasks are kept.
+ * Its threads are daemon threads.
+ */
+public final class BoundedExecutor {
+
+	private static final Logger LOG = LoggerFactory
+			.getLogger(BoundedExecutor.class);
+
+	private static final Object NO_TENANT = new Object();
+	private static final AtomicLong SEQUENCE = new AtomicLong();
+
+	private final ThreadPoolExecutor pool;
+	private final ExecutorService exiting;
+	private final Supplier<Integer> capacity;
+	private final Supplier<QueuePolicy> policy;
+	private final Supplier<Integer> reserved;
+	private final Map<Priority, Lane> lanes = new EnumMap<Priority, Lane>(
+			Priority.class);
+	/** The number of started tasks, by priority. */
+	private final int[] running = new int[Priority.values().length];
+	private int waitingCount = 0;
+	private boolean shutdown = false;
+
+	/**
+	 * Creates a pool.
+	 *
+	 * @param size
+	 *            the number of threads
+	 * @param capacity
+	 *            the maximum number of waiting tasks, not positive for an
+	 *            unbounded queue
+	 * @param policy
+	 *            the policy applied when the queue is full
+	 * @param reserved
+	 *            the number of threads reserved for interactive tasks (bulk
+	 *            tasks can always use at least one thread)
+	 */
+	public BoundedExecutor(int size, Supplier<Integer> capacity,
+			Supplier<QueuePolicy> policy, Supplier<Integer> reserved) {
+		Preconditions.checkArgument(size > 0, "Pool size must be positive");
+		this.capacity = Preconditions.checkNotNull(capacity);
+		this.policy = Preconditions.checkNotNull(policy);
+		this.reserved = Preconditions.checkNotNull(reserved);
+		for (Priority priority : Priority.values()) {
+			lanes.put(priority, new Lane());
+		}
+		this.pool = new ThreadPoolExecutor(size, size, 0L,
+				TimeUnit.MILLISECONDS, new LinkedBlockingQueue<Runnable>());
+		this.exiting = MoreExecutors.getExitingExecutorService(pool);
+	}
+
+	/**
+	 * Submits an interactive task without tenant, see
+	 * {@link #submit(Callable, Callable, Priority, Object)}.
+	 */
+	public <T> ListenableFuture<T> submit(Callable<T> task, Callable<T> fallback) {
+		return submit(task, fallback, Priority.INTERACTIVE, null);
+	}
+
+	/**
+	 * Submits a task.
+	 *
+	 * @param task
+	 *            the task to run on the pool
+	 * @param fallback
+	 *            the task run instead if the task is rejected or shed
+	 * @param priority
+	 *            the lane of the task
+	 * @param tenant
+	 *            the fairness key of the task, may be <code>null</code>
+	 * @return the future result of the task or its fallback
+	 * @throws java.util.concurrent.RejectedExecutionException
+	 *             if the pool is shut down
+	 */
+	public <T> ListenableFuture<T> submit(Callable<T> task,
+			Callable<T> fallback, Priority priority, Object tenant) {
+		final Task<T> submitted = new Task<T>(task, fallback,
+				Preconditions.checkNotNull(priority), tenant);
+		List<Task<?>> rejected = Lists.newArrayListWithCapacity(1);
+		synchronized (this) {
+			if (shutdown) {
+				throw new RejectedExecutionException("The pool is shut down");
+			}
+			while (!hasRoom()) {
+				QueuePolicy policy = this.policy.get();
+				if (policy == QueuePolicy.BLOCK) {
+					try {
+						wait();
+					} catch (InterruptedException e) {
+						Thread.currentThread().interrupt();
+						rejected.add(submitted);
+						break;
+					}
+				} else if (policy == QueuePolicy.SHED_OLDEST) {
+					rejected.add(shed());
+				} else {
+					rejected.add(submitted);
+					break;
+				}
+			}
+			if (rejected.isEmpty() || rejected.get(0) != submitted) {
+				lanes.get(priority).add(submitted);
+				waitingCount++;
+				dispatch();
+			}
+		}
+		submitted.future.addListener(new Runnable() {
+			@Override
+			public void run() {
+				done(submitted);
+			}
+		}, MoreExecutors.sameThreadExecutor());
+		for (Task<?> rejectedTask : rejected) {
+			LOG.warn("The queue is full, {} task",
+					rejectedTask == submitted ? "rejecting the new"
+							: "shedding the oldest");
+			rejectedTask.rejected = true;
+			rejectedTask.future.run();
+		}
+		return submitted.future;
+	}
+
+	private boolean hasRoom() {
+		int capacity = this.capacity.get();
+		return capacity <= 0 || waitingCount < capacity;
+	}
+
+	/**
+	 * Removes the oldest waiting task of the lowest priority.
+	 */
+	private Task<?> shed() {
+		Priority[] priorities = Priority.values();
+		for (int i = priorities.length - 1; i >= 0; i--) {
+			Task<?> oldest = lanes.get(priorities[i]).removeOldest();
+			if (oldest != null) {
+				waitingCount--;
+				return oldest;
+			}
+		}
+		throw new IllegalStateException("No waiting task");
+	}
+
+	/**
+	 * Starts waiting tasks while there are free threads.
+	 */
+	private void dispatch() {
+		int size = pool.getCorePoolSize();
+		for (Priority priority : Priority.values()) {
+			int limit = priority == Priority.INTERACTIVE ? size : Math.max(1,
+					size - reserved.get());
+			Lane lane = lanes.get(priority);
+			while (runningCount() < size && running[priority.ordinal()] < limit) {
+				Task<?> task = lane.poll();
+				if (task == null) {
+					break;
+				}
+				waitingCount--;
+				task.started = true;
+				running[priority.ordinal()]++;
+				pool.execute(task.future);
+				notifyAll();
+			}
+		}
+		if (shutdown && waitingCount == 0) {
+			pool.shutdown();
+		}
+	}
+
+	private int runningCount() {
+		int count = 0;
+		for (int n : running) {
+			count += n;
+		}
+		return count;
+	}
+
+	private synchronized void done(Task<?> task) {
+		if (task.started) {
+			running[task.priority.ordinal()]--;
+			dispatch();
+		} else if (lanes.get(task.priority).remove(task)) {
+			// cancelled while waiting
+			waitingCount--;
+			notifyAll();
+			dispatch();
+		}
+	}
+
+	/**
+	 * Changes the number of threads, keeping the waiting and running tasks.
+	 */
+	public synchronized void resize(int size) {
+		Preconditions.checkArgument(size > 0, "Pool size must be positive");
+		// the core size can't exceed the maximum size
+		if (size > pool.getMaximumPoolSize()) {
+			pool.setMaximumPoolSize(size);
+			pool.setCorePoolSize(size);
+		} else {
+			pool.setCorePoolSize(size);
+			pool.setMaximumPoolSize(size);
+		}
+		dispatch();
+	}
+
+	/**
+	 * Returns the number of threads.
+	 */
+	public int size() {
+		return pool.getCorePoolSize();
+	}
+
+	/**
+	 * Returns the number of tasks waiting for a thread.
+	 */
+	public synchronized int waitingCount() {
+		return waitingCount;
+	}
+
+	/**
+	 * Returns the pool as an executor service, which bypasses the admission
+	 * queue and the lanes.
+	 */
+	public ExecutorService executorService() {
+		return exiting;
+	}
+
+	/**
+	 * Initiates an orderly shutdown, the submitted tasks are still run.
+	 */
+	public synchronized void shutdown() {
+		shutdown = true;
+		dispatch();
+	}
+
+	/**
+	 * The waiting tasks of a priority, by tenant.
+	 */
+	private static final class Lane {
+
+		private final Map<Object, Deque<Task<?>>> tenants = Maps.newHashMap();
+		/** The tenants with waiting tasks, next to start first. */
+		private final Deque<Object> turns = new ArrayDeque<Object>();
+
+		private void add(Task<?> task) {
+			Deque<Task<?>> tasks = tenants.get(task.tenant);
+			if (tasks == null) {
+				tasks = new ArrayDeque<Task<?>>();
+				tenants.put(task.tenant, tasks);
+				turns.addLast(task.tenant);
+			}
+			tasks.addLast(task);
+		}
+
+		private Task<?> poll() {
+			Object tenant = turns.pollFirst();
+			if (tenant == null) {
+				return null;
+			}
+			Deque<Task<?>> tasks = tenants.get(tenant);
+			Task<?> task = tasks.pollFirst();
+			if (tasks.isEmpty()) {
+				tenants.remove(tenant);
+			} else {
+				turns.addLast(tenant);
+			}
+			return task;
+		}
+
+		private Task<?> removeOldest() {
+			Task<?> oldest = null;
+			for (Deque<Task<?>> tasks : tenants.values()) {
+				Task<?> first = tasks.peekFirst();
+				if (oldest == null || first.sequence < oldest.sequence) {
+					oldest = first;
+				}
+			}
+			if (oldest != null) {
+				remove(oldest);
+			}
+			return oldest;
+		}
+
+		private boolean remove(Task<?> task) {
+			Deque<Task<?>> tasks = tenants.get(task.tenant);
+			if (tasks == null || !tasks.remove(task)) {
+				return false;
+			}
+			if (tasks.isEmpty()) {
+				tenants.remove(task.tenant);
+				turns.remove(task.tenant);
+			}
+			return true;
+		}
+	}
+
+	private static final class Task<T> implements Callable<T> {
+
+		private final Callable<T> task;
+		private final Callable<T> fallback;
+		private final Priority priority;
+		private final Object tenant;
+		private final long sequence = SEQUENCE.getAndIncrement();
+		private final ListenableFutureTask<T> future;
+		private volatile boolean rejected = false;
+		/** Whether the task was passed to the pool, guarded by the executor. */
+		private boolean started = false;
+
+		private Task(Callable<T> task, Callable<T> fallback, Priority priority,
+				Object tenant) {
+			this.task = Preconditions.checkNotNull(task);
+			this.fallback = Preconditions.checkNotNull(fallback);
+			this.priority = priority;
+			this.tenant = tenant != null ? tenant : NO_TENANT;
+			this.future = ListenableFutureTask.create(this);
+		}
+
+		@Override
+		public T call() throws Exception {
+			return rejected ? fallback.call() : task.call();
+		}
+	}
+}
@@ -0,0 +1,20 @@
+package org.daisy.validation.epubcheck;
+
+import java.io.IOException;
+
+import com.google.common.io.LineProcessor;
+
+/**
+ * A {@link LineProcessor} which can process the lines as character sequences,
+ * so that the {@link DataPump} doesn't create a <code>String</code> per line.
+ */
+public interface CharLineProcessor<T> extends LineProcessor<T> {
+
+	/**
+	 * Processes a line, see {@link LineProcessor#processLine(String)}. The
+	 * sequence is reused for the next line, it must not be kept after the
+	 * call.
+	 */
+	boolean processChars(CharSequence line) throws IOException;
+
+}
@@ -2,7 +2,6 @@ package org.daisy.validation.epubcheck;
 
 import java.util.Arrays;
 import java.util.List;
-import java.util.concurrent.Callable;
 import java.util.concurrent.TimeUnit;
 
 import com.google.common.base.Preconditions;
@@ -10,7 +9,6 @@ import com.google.common.base.Strings;
 import com.google.common.collect.ImmutableList;
 import com.google.common.io.Closeables;
 import com.google.common.io.LineProcessor;
-import com.google.common.util.concurrent.SimpleTimeLimiter;
 import com.google.common.util.concurrent.UncheckedTimeoutException;
 
 public final class CommandExecutor<T> {
@@ -32,27 +30,53 @@ public final class CommandExecutor<T> {
 	public T run(final LineProcessor<T> lineProcessor, Long timeout,
 			TimeUnit timeoutUnit) throws InterruptedException,
 			UncheckedTimeoutException, Exception {
+		return run(lineProcessor, timeout, timeoutUnit, null);
+	}
+
+	/**
+	 * Runs the command, and records the process start in the given timer (if
+	 * not <code>null</code>).
+	 */
+	T run(final LineProcessor<T> lineProcessor, Long timeout,
+			TimeUnit timeoutUnit, final ValidationTimer timer)
+			throws InterruptedException, UncheckedTimeoutException, Exception {
 		Preconditions.checkNotNull(lineProcessor);
 
-		return new SimpleTimeLimiter().callWithTimeout(new Callable<T>() {
-
-			@Override
-			public T call() throws Exception {
-				final ProcessBuilder processBuilder = new ProcessBuilder(args);
-				processBuilder.redirectErrorStream(true);
-				Process process;
-				process = processBuilder.start();
-				try {
-					new DataPump<T>(process.getInputStream(), lineProcessor)
-							.run();
-					process.waitFor();
-				} finally {
-					process.destroy();
-					Closeables.closeQuietly(process.getInputStream());
-					Closeables.closeQuietly(process.getOutputStream());
-				}
-				return lineProcessor.getResult();
+		// the output is read on the calling thread, the deadline service
+		// destroys the process on timeout or interruption
+		final ProcessBuilder processBuilder = new ProcessBuilder(args);
+		processBuilder.redirectErrorStream(true);
+		Process process;
+		if (timer != null) {
+			timer.processStarting();
+		}
+		process = processBuilder.start();
+		if (timer != null) {
+			timer.processStarted();
+		}
+		PoolGauges.processStarted();
+		DeadlineService.Deadline deadline = DeadlineService.shared().watch(
+				process, timeout, timeoutUnit);
+		try {
+			DataPump<T> pump = new DataPump<T>(process.getInputStream(),
+					lineProcessor);
+			pump.run();
+			// when the processor stopped reading, the process is destroyed
+			// right away instead of being left to complete
+			if (!pump.isStopped()) {
+				process.waitFor();
 			}
-		}, timeout, timeoutUnit, true);
+		} catch (Exception e) {
+			// reading fails when the process is destroyed
+			deadline.stop();
+			throw e;
+		} finally {
+			process.destroy();
+			PoolGauges.processEnded();
+			Closeables.closeQuietly(process.getInputStream());
+			Closeables.closeQuietly(process.getOutputStream());
+		}
+		deadline.stop();
+		return lineProcessor.getResult();
 	}
 }
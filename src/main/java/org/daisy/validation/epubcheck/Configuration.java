@@ -1,13 +1,11 @@
 package org.daisy.validation.epubcheck;
 
+import java.io.File;
 import java.util.EnumSet;
 import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
-import java.util.concurrent.ThreadPoolExecutor;
 import java.util.concurrent.TimeUnit;
 
 import com.google.common.base.Supplier;
-import com.google.common.util.concurrent.MoreExecutors;
 
 public class Configuration extends ReloadableConfiguration {
 
@@ -19,11 +17,79 @@ public class Configuration extends ReloadableConfiguration {
 		return config;
 	}
 
+	/**
+	 * The ways EPUBCheck can be run.
+	 */
+	public static enum Engine {
+		/** A new <code>java -jar</code> process for every validation. */
+		PROCESS,
+		/** A pool of resident EPUBCheck JVMs, see {@link WorkerPool}. */
+		WORKER,
+		/** The EPUBCheck API in the current JVM, see {@link EmbeddedValidator}. */
+		EMBEDDED
+	}
+
+	/**
+	 * How the issues are read from EPUBCheck, with the {@link Engine#PROCESS}
+	 * engine.
+	 */
+	public static enum ReportMode {
+		/** Parsed from the text output. */
+		TEXT,
+		/**
+		 * Read from a JSON report written to a temporary file, see
+		 * {@link JsonReport}. The output is only parsed for fatal errors.
+		 */
+		JSON
+	}
+
+	/**
+	 * How the timeout of a validation is set.
+	 */
+	public static enum TimeoutMode {
+		/** The configured timeout. */
+		FIXED,
+		/**
+		 * Predicted from the EPUB size and number of entries, see
+		 * {@link TimeoutModel}, at most the configured timeout.
+		 */
+		ADAPTIVE
+	}
+
+	/**
+	 * What happens to a new validation when the validation queue is full.
+	 */
+	public static enum QueuePolicy {
+		/** The new validation fails with an internal error issue. */
+		REJECT,
+		/** The caller blocks until there is room in the queue. */
+		BLOCK,
+		/** The oldest queued validation fails with an internal error issue. */
+		SHED_OLDEST
+	}
+
 	public static enum Items implements Default {
 		JAR("epubcheck.jar", "epubcheck/epubcheck.jar"), TIMEOUT(
 				"epubcheck.timeout", "10"), TIMEOUT_UNIT(
-				"epubcheck.timeout.unit", "MINUTES"), POOL_SIZE(
-				"epubcheck.poolsize", "10");
+				"epubcheck.timeout.unit", "MINUTES"), TIMEOUT_MODE(
+				"epubcheck.timeout.mode", "FIXED"), TIMEOUT_PERCENTILE(
+				"epubcheck.timeout.percentile", "99"), TIMEOUT_MULTIPLIER(
+				"epubcheck.timeout.multiplier", "2"), TIMEOUT_FLOOR(
+				"epubcheck.timeout.floor", "30"), POOL_SIZE(
+				"epubcheck.poolsize", "10"), QUEUE_CAPACITY(
+				"epubcheck.queue.capacity", "1000"), QUEUE_POLICY(
+				"epubcheck.queue.policy", "REJECT"), INTERACTIVE_RESERVED(
+				"epubcheck.interactive.reserved", "1"), ENGINE("epubcheck.engine",
+				"PROCESS"), REPORT("epubcheck.report", "TEXT"), WORKER_POOL_SIZE("epubcheck.worker.poolsize", "4"), WORKER_MAX_JOBS(
+				"epubcheck.worker.maxjobs", "100"), WORKER_MAX_HEAP(
+				"epubcheck.worker.maxheap", "512"), CACHE_SIZE(
+				"epubcheck.cache.size", "0"), CACHE_DIR("epubcheck.cache.dir",
+				""), COALESCE("epubcheck.coalesce", "true"), ISSUES_IN_MEMORY(
+				"epubcheck.issues.memory", "0"), SUMMARY_SAMPLES(
+				"epubcheck.summary.samples", "3"), FAILFAST_FATAL(
+				"epubcheck.failfast.fatal", "false"), FAILFAST_ERRORS(
+				"epubcheck.failfast.errors", "0"), PREFLIGHT(
+				"epubcheck.preflight", "false");
 		private String name;
 		private String defaultValue;
 
@@ -74,19 +140,289 @@ public class Configuration extends ReloadableConfiguration {
 		}
 	};
 
-	public final Supplier<ExecutorService> executorService = new ConfigItem<ExecutorService>(
+	public final Supplier<TimeoutMode> timeoutMode = new ConfigItem<TimeoutMode>(
+			Items.TIMEOUT_MODE) {
+		@Override
+		protected TimeoutMode newValue(String string, TimeoutMode old) {
+			return TimeoutMode.valueOf(string.trim().toUpperCase());
+		}
+	};
+
+	/**
+	 * The percentile of the observed to predicted time ratios used for
+	 * adaptive timeouts, between 0 and 100.
+	 */
+	public final Supplier<Double> timeoutPercentile = new ConfigItem<Double>(
+			Items.TIMEOUT_PERCENTILE) {
+		@Override
+		protected Double newValue(String string, Double old)
+				throws NumberFormatException {
+			double percentile = Double.parseDouble(string);
+			if (percentile < 0 || percentile > 100) {
+				throw new NumberFormatException(string);
+			}
+			return percentile;
+		}
+	};
+
+	/**
+	 * The safety multiplier applied to adaptive timeouts.
+	 */
+	public final Supplier<Double> timeoutMultiplier = new ConfigItem<Double>(
+			Items.TIMEOUT_MULTIPLIER) {
+		@Override
+		protected Double newValue(String string, Double old)
+				throws NumberFormatException {
+			return Double.parseDouble(string);
+		}
+	};
+
+	/**
+	 * The minimum adaptive timeout, in seconds.
+	 */
+	public final Supplier<Long> timeoutFloor = new ConfigItem<Long>(
+			Items.TIMEOUT_FLOOR) {
+		@Override
+		protected Long newValue(String string, Long old)
+				throws NumberFormatException {
+			return Long.parseLong(string);
+		}
+	};
+
+	public final Supplier<Integer> poolSize = new ConfigItem<Integer>(
+			Items.POOL_SIZE) {
+		@Override
+		protected Integer newValue(String string, Integer old)
+				throws NumberFormatException {
+			return Integer.parseInt(string);
+		}
+	};
+
+	/**
+	 * The maximum number of validations waiting for a thread of the pool; not
+	 * positive for an unbounded queue.
+	 */
+	public final Supplier<Integer> queueCapacity = new ConfigItem<Integer>(
+			Items.QUEUE_CAPACITY) {
+		@Override
+		protected Integer newValue(String string, Integer old)
+				throws NumberFormatException {
+			return Integer.parseInt(string);
+		}
+	};
+
+	public final Supplier<QueuePolicy> queuePolicy = new ConfigItem<QueuePolicy>(
+			Items.QUEUE_POLICY) {
+		@Override
+		protected QueuePolicy newValue(String string, QueuePolicy old) {
+			return QueuePolicy.valueOf(string.trim().toUpperCase());
+		}
+	};
+
+	/**
+	 * The number of threads of the validation pool reserved for interactive
+	 * validations, see {@link Priority}.
+	 */
+	public final Supplier<Integer> interactiveReserved = new ConfigItem<Integer>(
+			Items.INTERACTIVE_RESERVED) {
+		@Override
+		protected Integer newValue(String string, Integer old)
+				throws NumberFormatException {
+			return Integer.parseInt(string);
+		}
+	};
+
+	/**
+	 * The validation pool, which is resized in place when the pool size
+	 * changes.
+	 */
+	public final Supplier<BoundedExecutor> executor = new ConfigItem<BoundedExecutor>(
 			Items.POOL_SIZE) {
 
 		@Override
-		protected ExecutorService newValue(String string, ExecutorService old)
+		protected BoundedExecutor newValue(String string, BoundedExecutor old)
+				throws NumberFormatException {
+			final int size = Integer.parseInt(string);
+			if (old != null) {
+				old.resize(size);
+				return old;
+			}
+			return new BoundedExecutor(size, queueCapacity, queuePolicy,
+					interactiveReserved);
+		}
+	};
+
+	/**
+	 * The validation pool as an executor service, bypassing the admission
+	 * queue.
+	 */
+	public final Supplier<ExecutorService> executorService = new Supplier<ExecutorService>() {
+		@Override
+		public ExecutorService get() {
+			return executor.get().executorService();
+		}
+	};
+
+	public final Supplier<Engine> engine = new ConfigItem<Engine>(Items.ENGINE) {
+		@Override
+		protected Engine newValue(String string, Engine old) {
+			return Engine.valueOf(string.trim().toUpperCase());
+		}
+	};
+
+	public final Supplier<ReportMode> report = new ConfigItem<ReportMode>(
+			Items.REPORT) {
+		@Override
+		protected ReportMode newValue(String string, ReportMode old) {
+			return ReportMode.valueOf(string.trim().toUpperCase());
+		}
+	};
+
+	/**
+	 * The maximum number of jobs a worker JVM runs before being recycled.
+	 */
+	public final Supplier<Integer> workerMaxJobs = new ConfigItem<Integer>(
+			Items.WORKER_MAX_JOBS) {
+		@Override
+		protected Integer newValue(String string, Integer old)
+				throws NumberFormatException {
+			return Integer.parseInt(string);
+		}
+	};
+
+	/**
+	 * The used heap (in MB) above which a worker JVM is recycled.
+	 */
+	public final Supplier<Long> workerMaxHeap = new ConfigItem<Long>(
+			Items.WORKER_MAX_HEAP) {
+		@Override
+		protected Long newValue(String string, Long old)
+				throws NumberFormatException {
+			return Long.parseLong(string);
+		}
+	};
+
+	public final Supplier<WorkerPool> workerPool = new ConfigItem<WorkerPool>(
+			Items.WORKER_POOL_SIZE) {
+
+		@Override
+		protected WorkerPool newValue(String string, WorkerPool old)
 				throws NumberFormatException {
 			final int size = Integer.parseInt(string);
 			if (old != null) {
 				old.shutdown();
 			}
-			return MoreExecutors
-					.getExitingExecutorService((ThreadPoolExecutor) Executors
-							.newFixedThreadPool(size));
+			return new WorkerPool(size, jar, workerMaxJobs, workerMaxHeap);
+		}
+	};
+
+	public final Supplier<EmbeddedValidator> embeddedValidator = new ConfigItem<EmbeddedValidator>(
+			Items.JAR) {
+		@Override
+		protected EmbeddedValidator newValue(String string,
+				EmbeddedValidator old) {
+			if (old != null) {
+				old.shutdown();
+			}
+			return new EmbeddedValidator(new File(string));
+		}
+	};
+
+	public final Supplier<String> cacheDir = new ConfigItem<String>(
+			Items.CACHE_DIR) {
+		@Override
+		protected String newValue(String string, String old) {
+			return string;
+		}
+	};
+
+	/**
+	 * The result cache, or <code>null</code> when caching is disabled (i.e.
+	 * the cache size is not positive).
+	 */
+	public final Supplier<ResultCache> resultCache = new ConfigItem<ResultCache>(
+			Items.CACHE_SIZE) {
+		@Override
+		protected ResultCache newValue(String string, ResultCache old)
+				throws NumberFormatException {
+			final long size = Long.parseLong(string);
+			return size > 0 ? new ResultCache(size, cacheDir) : null;
+		}
+	};
+
+	/**
+	 * Whether concurrent validations of the same EPUB share a single
+	 * EPUBCheck run.
+	 */
+	public final Supplier<Boolean> coalesce = new ConfigItem<Boolean>(
+			Items.COALESCE) {
+		@Override
+		protected Boolean newValue(String string, Boolean old) {
+			return Boolean.parseBoolean(string.trim());
+		}
+	};
+
+	/**
+	 * The number of collected issues of a validation kept in memory, beyond
+	 * which they are spilled to a temporary file, see {@link IssueList}. Not
+	 * positive to keep all the issues in memory.
+	 */
+	public final Supplier<Integer> issuesInMemory = new ConfigItem<Integer>(
+			Items.ISSUES_IN_MEMORY) {
+		@Override
+		protected Integer newValue(String string, Integer old)
+				throws NumberFormatException {
+			return Integer.parseInt(string.trim());
+		}
+	};
+
+	/**
+	 * The number of sample issues kept per message in a
+	 * {@link ValidationSummary}.
+	 */
+	public final Supplier<Integer> summarySamples = new ConfigItem<Integer>(
+			Items.SUMMARY_SAMPLES) {
+		@Override
+		protected Integer newValue(String string, Integer old)
+				throws NumberFormatException {
+			return Integer.parseInt(string.trim());
+		}
+	};
+
+	/**
+	 * Whether validations stop at the first fatal error, see
+	 * {@link FailFastPolicy}.
+	 */
+	public final Supplier<Boolean> failFastFatal = new ConfigItem<Boolean>(
+			Items.FAILFAST_FATAL) {
+		@Override
+		protected Boolean newValue(String string, Boolean old) {
+			return Boolean.parseBoolean(string.trim());
+		}
+	};
+
+	/**
+	 * The number of errors after which validations stop, see
+	 * {@link FailFastPolicy}. Not positive to not stop on errors.
+	 */
+	public final Supplier<Integer> failFastErrors = new ConfigItem<Integer>(
+			Items.FAILFAST_ERRORS) {
+		@Override
+		protected Integer newValue(String string, Integer old)
+				throws NumberFormatException {
+			return Integer.parseInt(string.trim());
+		}
+	};
+
+	/**
+	 * Whether EPUBs are checked in the current JVM first, so that EPUBCheck is
+	 * not run for files it would reject right away, see {@link Preflight}.
+	 */
+	public final Supplier<Boolean> preflight = new ConfigItem<Boolean>(
+			Items.PREFLIGHT) {
+		@Override
+		protected Boolean newValue(String string, Boolean old) {
+			return Boolean.parseBoolean(string.trim());
 		}
 	};
 
@@ -1,9 +1,7 @@
 package org.daisy.validation.epubcheck;
 
-import java.io.BufferedReader;
 import java.io.IOException;
 import java.io.InputStream;
-import java.io.InputStreamReader;
 
 import com.google.common.io.Closeables;
 import com.google.common.io.LineProcessor;
@@ -12,6 +10,7 @@ public class DataPump<T> implements Runnable {
 
 	private final InputStream is;
 	private final LineProcessor<T> lineProcessor;
+	private boolean stopped = false;
 
 	/**
 	 * Connect pump from an Input Stream to a String Buffer
@@ -22,24 +21,51 @@ public class DataPump<T> implements Runnable {
 	}
 
 	/**
-	 * Extracts text line by line from an input stream into a LineProcessor.
-	 * 
+	 * Extracts text line by line from an input stream into a LineProcessor,
+	 * until the end of the stream or until the LineProcessor returns
+	 * <code>false</code>.
+	 * <p>
+	 * The stream is decoded as UTF-8, see {@link Utf8LineReader}. Lines are
+	 * passed as reused character sequences to {@link CharLineProcessor}s, and
+	 * as strings to other LineProcessors.
 	 */
 	public void run() {
 		try {
-			final BufferedReader bReader = new BufferedReader(
-					new InputStreamReader(is));
 			try {
-				String line;
-				while ((line = bReader.readLine()) != null) {
-					lineProcessor.processLine(line);
+				Utf8LineReader reader = new Utf8LineReader(is);
+				CharSequence line;
+				while ((line = reader.readLine()) != null) {
+					if (!feed(lineProcessor, line)) {
+						stopped = true;
+						return;
+					}
 				}
 			} finally {
-				Closeables.closeQuietly(bReader);
+				Closeables.closeQuietly(is);
 			}
 		} catch (final IOException ex) {
 			throw new RuntimeException(ex);
 		}
 	}
 
-}
\ No newline at end of file
+	/**
+	 * Returns whether the LineProcessor stopped the pump before the end of the
+	 * stream.
+	 */
+	public boolean isStopped() {
+		return stopped;
+	}
+
+	/**
+	 * Passes the given line to the given LineProcessor, as a string unless it
+	 * is a {@link CharLineProcessor}.
+	 */
+	static boolean feed(LineProcessor<?> lineProcessor, CharSequence line)
+			throws IOException {
+		if (lineProcessor instanceof CharLineProcessor) {
+			return ((CharLineProcessor<?>) lineProcessor).processChars(line);
+		}
+		return lineProcessor.processLine(line.toString());
+	}
+
+}
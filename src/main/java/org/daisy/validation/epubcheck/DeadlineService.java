@@ -0,0 +1,183 @@
+package org.daisy.validation.epubcheck;
+
+import java.lang.reflect.Method;
+import java.util.Iterator;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.common.base.Preconditions;
+import com.google.common.collect.Sets;
+import com.google.common.util.concurrent.MoreExecutors;
+import com.google.common.util.concurrent.UncheckedTimeoutException;
+
+/**
+ * Enforces the timeouts of the EPUBCheck processes, with a single shared
+ * thread.
+ * <p>
+ * The output of a process is read on the thread which started it (the
+ * <em>owner</em>), which registers a {@link Deadline} for the process. The
+ * shared thread checks the registered deadlines periodically: a process is
+ * destroyed when its deadline has passed, or when its owner is interrupted
+ * (e.g. because the validation was cancelled), which ends the blocking read of
+ * its output. A destroyed process which is still alive after a grace period
+ * is destroyed forcibly, when the JVM supports it.
+ */
+final class DeadlineService {
+
+	private static final Logger LOG = LoggerFactory
+			.getLogger(DeadlineService.class);
+
+	private static final long TICK_MILLIS = 100;
+	private static final long GRACE_NANOS = TimeUnit.SECONDS.toNanos(5);
+	/** <code>Process.destroyForcibly()</code>, since Java 8. */
+	private static final Method DESTROY_FORCIBLY = findDestroyForcibly();
+
+	private static class Holder {
+		private static final DeadlineService SHARED = new DeadlineService();
+	}
+
+	/**
+	 * Returns the shared service, whose thread is started on the first call.
+	 */
+	static DeadlineService shared() {
+		return Holder.SHARED;
+	}
+
+	private final Set<Deadline> active = Sets
+			.newSetFromMap(new ConcurrentHashMap<Deadline, Boolean>());
+	private final Set<Deadline> dying = Sets
+			.newSetFromMap(new ConcurrentHashMap<Deadline, Boolean>());
+
+	private DeadlineService() {
+		MoreExecutors.getExitingScheduledExecutorService(
+				new ScheduledThreadPoolExecutor(1), 0, TimeUnit.SECONDS)
+				.scheduleWithFixedDelay(new Runnable() {
+					@Override
+					public void run() {
+						tick();
+					}
+				}, TICK_MILLIS, TICK_MILLIS, TimeUnit.MILLISECONDS);
+	}
+
+	/**
+	 * Registers the deadline of the given process, owned by the current
+	 * thread.
+	 *
+	 * @param timeout
+	 *            the timeout, or <code>null</code> for no timeout (the process
+	 *            is still destroyed if the owner is interrupted)
+	 */
+	Deadline watch(Process process, Long timeout, TimeUnit timeoutUnit) {
+		Preconditions.checkNotNull(process);
+		Deadline deadline = new Deadline(process, timeout == null ? -1
+				: timeoutUnit.toNanos(timeout));
+		active.add(deadline);
+		return deadline;
+	}
+
+	private void tick() {
+		try {
+			long now = System.nanoTime();
+			for (Deadline deadline : active) {
+				if (deadline.timeoutNanos >= 0
+						&& now - deadline.start >= deadline.timeoutNanos) {
+					deadline.destroy(true, now);
+				} else if (deadline.owner.isInterrupted()) {
+					deadline.destroy(false, now);
+				}
+			}
+			for (Iterator<Deadline> it = dying.iterator(); it.hasNext();) {
+				Deadline deadline = it.next();
+				if (now - deadline.destroyed >= GRACE_NANOS) {
+					it.remove();
+					deadline.destroyForcibly();
+				}
+			}
+		} catch (RuntimeException e) {
+			LOG.warn("Unexpected error while checking the deadlines", e);
+		}
+	}
+
+	private static Method findDestroyForcibly() {
+		try {
+			return Process.class.getMethod("destroyForcibly");
+		} catch (NoSuchMethodException e) {
+			return null;
+		}
+	}
+
+	/**
+	 * The deadline of a process.
+	 */
+	final class Deadline {
+
+		private final Process process;
+		private final Thread owner = Thread.currentThread();
+		private final long start = System.nanoTime();
+		private final long timeoutNanos;
+		private volatile boolean expired = false;
+		private volatile long destroyed;
+
+		private Deadline(Process process, long timeoutNanos) {
+			this.process = process;
+			this.timeoutNanos = timeoutNanos;
+		}
+
+		/**
+		 * Stops watching the process, which has completed (or failed).
+		 *
+		 * @throws UncheckedTimeoutException
+		 *             if the process was destroyed because its deadline had
+		 *             passed
+		 * @throws InterruptedException
+		 *             if the process was destroyed because the owner was
+		 *             interrupted
+		 */
+		void stop() throws InterruptedException {
+			if (active.remove(this)) {
+				return;
+			}
+			if (expired) {
+				throw new UncheckedTimeoutException("Process timed out");
+			}
+			// clear the interrupted status, as an interrupted wait would
+			Thread.interrupted();
+			throw new InterruptedException("Process interrupted");
+		}
+
+		private void destroy(boolean expired, long now) {
+			// set before removing, so that stop() sees it
+			this.expired = expired;
+			if (!active.remove(this)) {
+				// stopped concurrently
+				return;
+			}
+			LOG.debug("Destroying process: {}", expired ? "timed out"
+					: "interrupted");
+			destroyed = now;
+			process.destroy();
+			if (DESTROY_FORCIBLY != null) {
+				dying.add(this);
+			}
+		}
+
+		private void destroyForcibly() {
+			try {
+				process.exitValue();
+			} catch (IllegalThreadStateException e) {
+				LOG.debug("Destroying process forcibly");
+				try {
+					DESTROY_FORCIBLY.invoke(process);
+				} catch (Exception ex) {
+					LOG.warn("Couldn't destroy process forcibly: {}",
+							ex.getMessage());
+				}
+			}
+		}
+	}
+}
@@ -0,0 +1,411 @@
+package org.daisy.validation.epubcheck;
+
+import java.io.File;
+import java.io.IOException;
+import java.lang.reflect.Constructor;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.net.URL;
+import java.net.URLClassLoader;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import org.daisy.validation.epubcheck.Issue.Type;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.common.base.Preconditions;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import com.google.common.util.concurrent.SimpleTimeLimiter;
+import com.google.common.util.concurrent.TimeLimiter;
+import com.google.common.util.concurrent.UncheckedTimeoutException;
+
+/**
+ * Runs EPUBCheck in the current JVM, through its Java API.
+ * <p>
+ * The EPUBCheck jar (and the libraries referenced from its manifest) is
+ * loaded in a dedicated class loader, isolated from the application class
+ * path. The EPUBCheck report callbacks are directly turned into {@link Issue}
+ * objects, no output is parsed. The class loader is shared by all the
+ * validations, which can run concurrently, and is closed by
+ * {@link #shutdown()} once they are done.
+ */
+public final class EmbeddedValidator {
+
+	private static final Logger LOG = LoggerFactory
+			.getLogger(EmbeddedValidator.class);
+
+	/**
+	 * The maximum number of validations running at once, those which ignored
+	 * a timeout included. Further validations are rejected.
+	 */
+	private static final int MAX_THREADS = 256;
+
+	/**
+	 * There is no process to destroy on timeout, so validations still run on
+	 * a separate (shared) pool to return in time.
+	 */
+	private static final TimeLimiter LIMITER = new SimpleTimeLimiter(
+			new ThreadPoolExecutor(0, MAX_THREADS, 60L, TimeUnit.SECONDS,
+					new SynchronousQueue<Runnable>(), new ThreadFactoryBuilder()
+							.setNameFormat("epubcheck-embedded-%d")
+							.setDaemon(true).build()));
+
+	private final File jar;
+	// guarded by this
+	private Api api;
+	private int running = 0;
+	private boolean shutdown = false;
+	private boolean closed = false;
+
+	/**
+	 * Creates a validator for the given EPUBCheck jar. The jar is only loaded
+	 * on the first validation.
+	 */
+	public EmbeddedValidator(File jar) {
+		this.jar = Preconditions.checkNotNull(jar);
+	}
+
+	/**
+	 * Validates the given EPUB in the current JVM.
+	 * <p>
+	 * When the timeout is reached, the validating thread is interrupted, but
+	 * EPUBCheck may not react to interruption. It is then stopped on its next
+	 * report, and its issues are dropped.
+	 */
+	public List<Issue> validate(final File epub, Long timeout,
+			TimeUnit timeoutUnit) throws InterruptedException,
+			UncheckedTimeoutException, Exception {
+		return validate(epub, new StatefulParser(epub), timeout, timeoutUnit);
+	}
+
+	/**
+	 * Validates the given EPUB in the current JVM, and reports the issues
+	 * through the given parser (no output is parsed, the parser is only used
+	 * to collect or dispatch the issues).
+	 */
+	public List<Issue> validate(final File epub, final StatefulParser parser,
+			Long timeout, TimeUnit timeoutUnit) throws InterruptedException,
+			UncheckedTimeoutException, Exception {
+		Preconditions.checkNotNull(epub);
+		Preconditions.checkNotNull(parser);
+		final Sink sink = new Sink(parser);
+		try {
+			return LIMITER.callWithTimeout(new Callable<List<Issue>>() {
+				@Override
+				public List<Issue> call() throws Exception {
+					validate(epub, sink);
+					return parser.getResult();
+				}
+			}, timeout, timeoutUnit, true);
+		} finally {
+			// the caller no longer expects issues, e.g. after a timeout
+			sink.detach();
+		}
+	}
+
+	/**
+	 * Closes the class loader of the EPUBCheck API, once the running
+	 * validations are done (validations which ignored a timeout included).
+	 * Validations started afterwards fail with an internal error.
+	 */
+	public synchronized void shutdown() {
+		shutdown = true;
+		if (running == 0) {
+			close();
+		}
+	}
+
+	private synchronized Api acquire() {
+		Preconditions.checkState(!closed, "EPUBCheck API is closed");
+		if (api == null) {
+			try {
+				api = new Api(jar);
+			} catch (Exception e) {
+				throw new IllegalStateException(
+						"Couldn't load the EPUBCheck API from " + jar, e);
+			}
+		}
+		running++;
+		return api;
+	}
+
+	private synchronized void release() {
+		running--;
+		if (shutdown && running == 0) {
+			close();
+		}
+	}
+
+	private void close() {
+		closed = true;
+		if (api != null) {
+			try {
+				api.loader.close();
+			} catch (IOException e) {
+				LOG.warn("Couldn't close the class loader of {}: {}", jar,
+						e.getMessage());
+			}
+			api = null;
+		}
+	}
+
+	private void validate(File epub, Sink sink) throws Exception {
+		if (!epub.exists()) {
+			sink.report(new Issue(Type.INTERNAL_ERROR, epub.getPath(),
+					"File not found: '" + epub.getPath() + "'"));
+			return;
+		}
+		Api api = acquire();
+		try {
+			validate(api, epub, sink);
+		} finally {
+			release();
+		}
+	}
+
+	private static void validate(Api api, File epub, Sink sink)
+			throws Exception {
+		ReportHandler handler = new ReportHandler(api, sink, epub.getName());
+		Object report = Proxy.newProxyInstance(api.loader,
+				new Class<?>[] { api.reportClass }, handler);
+		try {
+			api.validate.invoke(api.newEpubCheck.newInstance(epub, report));
+		} catch (InvocationTargetException e) {
+			if (e.getCause() instanceof Stop) {
+				return;
+			}
+			LOG.warn("EPUBCheck failed on {}", epub, e.getCause());
+			sink.report(new Issue(Type.INTERNAL_ERROR, String.valueOf(e
+					.getCause().getMessage())));
+		}
+	}
+
+	/**
+	 * The reflective handles to the EPUBCheck API, in the isolated class
+	 * loader.
+	 */
+	private static final class Api {
+
+		private final URLClassLoader loader;
+		private final Class<?> reportClass;
+		private final Class<?> messageClass;
+		private final Constructor<?> newEpubCheck;
+		private final Method validate;
+		private final Method getMessage;
+		private final Method getSeverity;
+		private final Method formatMessage;
+		private final Method getPath;
+		private final Method getLine;
+		private final Method getColumn;
+		private final Object messages;
+		private final Object dictionary;
+		private final int reportingLevel;
+
+		private Api(File jar) throws Exception {
+			loader = new URLClassLoader(new URL[] { jar.toURI().toURL() },
+					ClassLoader.getSystemClassLoader().getParent());
+			reportClass = loader.loadClass("com.adobe.epubcheck.api.Report");
+			messageClass = loader
+					.loadClass("com.adobe.epubcheck.messages.Message");
+			Class<?> epubCheckClass = loader
+					.loadClass("com.adobe.epubcheck.api.EpubCheck");
+			newEpubCheck = epubCheckClass.getConstructor(File.class,
+					reportClass);
+			validate = epubCheckClass.getMethod("validate");
+			Class<?> messagesClass = loader
+					.loadClass("com.adobe.epubcheck.messages.LocalizedMessages");
+			Class<?> messageIdClass = loader
+					.loadClass("com.adobe.epubcheck.messages.MessageId");
+			messages = messagesClass.getMethod("getInstance").invoke(null);
+			getMessage = messagesClass.getMethod("getMessage", messageIdClass);
+			getSeverity = messageClass.getMethod("getSeverity");
+			formatMessage = messageClass.getMethod("getMessage",
+					Object[].class);
+			Class<?> locationClass = loader
+					.loadClass("com.adobe.epubcheck.api.EPUBLocation");
+			getPath = locationClass.getMethod("getPath");
+			getLine = locationClass.getMethod("getLine");
+			getColumn = locationClass.getMethod("getColumn");
+			reportingLevel = loader
+					.loadClass("com.adobe.epubcheck.util.ReportingLevel")
+					.getField("Info").getInt(null);
+			dictionary = Proxy.newProxyInstance(loader, new Class<?>[] { loader
+					.loadClass("com.adobe.epubcheck.messages.MessageDictionary") },
+					new InvocationHandler() {
+						@Override
+						public Object invoke(Object proxy, Method method,
+								Object[] args) throws Throwable {
+							if ("getMessage".equals(method.getName())) {
+								return message(args[0]);
+							}
+							return invokeObjectMethod(proxy, method, args);
+						}
+					});
+		}
+
+		private Object message(Object id) throws Exception {
+			// LocalizedMessages caches messages in a plain map
+			synchronized (messages) {
+				return getMessage.invoke(messages, id);
+			}
+		}
+	}
+
+	/**
+	 * Thrown from the report callbacks once the parser has stopped the
+	 * validation (see {@link StatefulParser#isTruncated()}) or the caller is
+	 * detached, since EPUBCheck can't be cancelled otherwise.
+	 */
+	private static final class Stop extends RuntimeException {
+		private static final long serialVersionUID = 1L;
+
+		private Stop() {
+			super("Validation stopped");
+		}
+
+		@Override
+		public synchronized Throwable fillInStackTrace() {
+			return this;
+		}
+	}
+
+	/**
+	 * Passes the issues to a parser, until the caller is detached (i.e. no
+	 * longer waits for the validation). Late issues are then dropped.
+	 */
+	private static final class Sink {
+
+		private final StatefulParser parser;
+		// guarded by this
+		private boolean detached = false;
+
+		private Sink(StatefulParser parser) {
+			this.parser = parser;
+		}
+
+		private synchronized void report(Issue issue) {
+			if (!detached) {
+				parser.report(issue);
+			}
+		}
+
+		private synchronized boolean isStopped() {
+			return detached || parser.isTruncated();
+		}
+
+		private synchronized void detach() {
+			detached = true;
+		}
+	}
+
+	/**
+	 * Implements EPUBCheck's <code>Report</code> interface by reporting the
+	 * issues to a sink.
+	 */
+	private static final class ReportHandler implements InvocationHandler {
+
+		private final Api api;
+		private final Sink sink;
+		private final int[] counts = new int[Type.values().length];
+		private String epubName;
+
+		private ReportHandler(Api api, Sink sink, String epubName) {
+			this.api = api;
+			this.sink = sink;
+			this.epubName = epubName;
+		}
+
+		@Override
+		public Object invoke(Object proxy, Method method, Object[] args)
+				throws Throwable {
+			String name = method.getName();
+			if (sink.isStopped()
+					&& ("message".equals(name) || "info".equals(name))) {
+				// unwinds the validation, see Stop
+				throw new Stop();
+			}
+			if ("message".equals(name)) {
+				Object message = api.messageClass.isInstance(args[0]) ? args[0]
+						: api.message(args[0]);
+				message(message, args[1], (Object[]) args[2]);
+				return null;
+			} else if ("info".equals(name)) {
+				if (args[1] != null
+						&& "FORMAT_VERSION".equals(((Enum<?>) args[1]).name())
+						&& args[2] != null) {
+					sink.report(new Issue(Type.EPUB_VERSION, null,
+							(String) args[2]));
+				}
+				return null;
+			} else if ("getFatalErrorCount".equals(name)) {
+				return counts[Type.FATAL.ordinal()];
+			} else if ("getErrorCount".equals(name)) {
+				return counts[Type.ERROR.ordinal()];
+			} else if ("getWarningCount".equals(name)) {
+				return counts[Type.WARNING.ordinal()];
+			} else if ("getInfoCount".equals(name)) {
+				return counts[Type.INFO.ordinal()];
+			} else if ("getUsageCount".equals(name)) {
+				return counts[Type.USAGE.ordinal()];
+			} else if ("getReportingLevel".equals(name)) {
+				return api.reportingLevel;
+			} else if ("getDictionary".equals(name)) {
+				return api.dictionary;
+			} else if ("getEpubFileName".equals(name)) {
+				return epubName;
+			} else if ("setEpubFileName".equals(name)) {
+				epubName = (String) args[0];
+				return null;
+			} else if ("generate".equals(name)) {
+				return 0;
+			} else if (method.getDeclaringClass() == Object.class) {
+				return invokeObjectMethod(proxy, method, args);
+			}
+			return null;
+		}
+
+		private void message(Object message, Object location, Object[] args)
+				throws Exception {
+			if (message == null) {
+				return;
+			}
+			String severity = ((Enum<?>) api.getSeverity.invoke(message))
+					.name();
+			if ("SUPPRESSED".equals(severity) || "USAGE".equals(severity)) {
+				return;
+			}
+			Type type = Type.safeValueOf(severity);
+			counts[type.ordinal()]++;
+			String txt = (String) api.formatMessage.invoke(message,
+					new Object[] { args == null ? new Object[0] : args });
+			if (location == null) {
+				sink.report(new Issue(type, txt));
+			} else {
+				sink.report(new Issue(type, (String) api.getPath
+						.invoke(location), (Integer) api.getLine
+						.invoke(location), (Integer) api.getColumn
+						.invoke(location), txt));
+			}
+		}
+	}
+
+	private static Object invokeObjectMethod(Object proxy, Method method,
+			Object[] args) {
+		String name = method.getName();
+		if ("equals".equals(name)) {
+			return proxy == args[0];
+		} else if ("hashCode".equals(name)) {
+			return System.identityHashCode(proxy);
+		} else if ("toString".equals(name)) {
+			return proxy.getClass().getName() + '@'
+					+ Integer.toHexString(System.identityHashCode(proxy));
+		}
+		return null;
+	}
+}
@@ -1,19 +1,39 @@
 package org.daisy.validation.epubcheck;
 
 import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Iterator;
 import java.util.List;
+import java.util.ServiceConfigurationError;
+import java.util.ServiceLoader;
 import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
 import java.util.concurrent.ExecutionException;
-import java.util.concurrent.Future;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
 
+import org.daisy.validation.epubcheck.Configuration.Engine;
+import org.daisy.validation.epubcheck.Configuration.ReportMode;
+import org.daisy.validation.epubcheck.Configuration.TimeoutMode;
 import org.daisy.validation.epubcheck.Issue.Type;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import com.google.common.base.Function;
+import com.google.common.base.Functions;
+import com.google.common.base.Preconditions;
 import com.google.common.base.Supplier;
 import com.google.common.base.Suppliers;
 import com.google.common.collect.Lists;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.MoreExecutors;
+import com.google.common.util.concurrent.SettableFuture;
 import com.google.common.util.concurrent.UncheckedTimeoutException;
+import com.google.common.util.concurrent.Uninterruptibles;
 
 public final class EpubCheckInvoker {
 
@@ -25,12 +45,20 @@ public final class EpubCheckInvoker {
         return INSTANCE.validate(file);
     }
 
+    /**
+     * Returns the version of the configured EPUBCheck, or <code>unknown</code>. The version is read from the jar
+     * manifest or Maven properties when possible (EPUBCheck is run otherwise), and cached until the jar changes.
+     */
     public static String version() {
         return INSTANCE.version.get();
     }
 
     private Configuration config = Configuration.newConfiguration();
-    private Supplier<String> version = Suppliers.memoize(new Supplier<String>() {
+    private final PoolGauges gauges = new PoolGauges();
+    private final TimeoutModel timeoutModel = new TimeoutModel();
+    private final SingleFlight<String, List<Issue>> flights = new SingleFlight<String, List<Issue>>();
+    private volatile ValidationMetrics metrics = loadMetrics();
+    private final VersionResolver version = new VersionResolver(config.jar, new Supplier<String>() {
 
         @Override
         public String get() {
@@ -38,7 +66,7 @@ public final class EpubCheckInvoker {
             if (!results.isEmpty() && results.get(0).type == Type.EPUBCHECK_VERSION) {
                 return results.get(0).txt;
             } else {
-                return "unknown";
+                return null;
             }
         }
     });
@@ -47,41 +75,499 @@ public final class EpubCheckInvoker {
         return validate(new File(epubPath));
     }
 
+    /**
+     * Validates the given EPUB, which is either an EPUB file or a directory with the contents of an unpacked EPUB.
+     * Blocks until the validation is done.
+     */
     public List<Issue> validate(final File epubFile) {
-        Future<List<Issue>> result = config.executorService.get().submit(new Callable<List<Issue>>() {
+        return validate(epubFile, Priority.INTERACTIVE);
+    }
+
+    /**
+     * Validates the given EPUB in the given lane of the validation pool, see {@link Priority}. Blocks until the
+     * validation is done.
+     */
+    public List<Issue> validate(final File epubFile, Priority priority) {
+        try {
+            return validateAsync(epubFile, priority, null).get();
+        } catch (InterruptedException e) {
+            return Lists.newArrayList(new Issue(Type.INTERNAL_ERROR, "InterruptedException - " + e.getMessage()));
+        } catch (ExecutionException e) {
+            // Shouldn't happen
+            throw new RuntimeException(e);
+        }
+    }
+
+    /**
+     * Validates the given EPUB and passes the issues to the given listener as soon as they are recognized, while
+     * EPUBCheck is still running. Issues are not collected. Blocks until the validation is done.
+     */
+    public void validateStreaming(final File epubFile, IssueListener listener) {
+        Preconditions.checkNotNull(listener);
+        try {
+            submit(epubFile, listener, Priority.INTERACTIVE, null).get();
+        } catch (InterruptedException e) {
+            listener.onIssue(new Issue(Type.INTERNAL_ERROR, "InterruptedException - " + e.getMessage()));
+        } catch (ExecutionException e) {
+            // Shouldn't happen
+            throw new RuntimeException(e);
+        }
+    }
+
+    /**
+     * Validates the given EPUB without blocking the calling thread. The returned future completes when the
+     * validation is done, with the same issues as {@link #validate(File)}.
+     * <p>
+     * When the result cache is enabled, the cache lookup (and computing the content digest of the EPUB, the first
+     * time) is done in the validation pool too.
+     */
+    public ListenableFuture<List<Issue>> validateAsync(final File epubFile) {
+        return validateAsync(epubFile, Priority.INTERACTIVE, null);
+    }
+
+    /**
+     * Validates the given EPUB without blocking the calling thread, in the given lane of the validation pool (see
+     * {@link Priority}). Within a lane, validations of different tenants are started in turn.
+     *
+     * @param tenant
+     *            the fairness key of the validation, may be <code>null</code>
+     */
+    public ListenableFuture<List<Issue>> validateAsync(final File epubFile, Priority priority, String tenant) {
+        Preconditions.checkNotNull(priority);
+        return submit(epubFile, null, priority, tenant);
+    }
+
+    /**
+     * Validates the given EPUB without blocking the calling thread, and passes the issues to the given listener as
+     * soon as they are recognized. Issues are not collected. The returned future completes when the validation is
+     * done.
+     * <p>
+     * When the result is found in the cache, the cached issues are passed to the listener all at once.
+     */
+    public ListenableFuture<Void> validateStreamingAsync(final File epubFile, IssueListener listener) {
+        Preconditions.checkNotNull(listener);
+        return Futures.transform(submit(epubFile, listener, Priority.INTERACTIVE, null),
+                Functions.<Void> constant(null));
+    }
+
+    private ListenableFuture<List<Issue>> submit(final File epubFile, final IssueListener listener,
+            final Priority priority, final String tenant) {
+        final ResultCache cache = config.resultCache.get();
+        // streamed issues are not collected, and thus can't be shared; the files of a directory can change without
+        // changing its modification time
+        if (listener == null && epubFile != null && !epubFile.isDirectory() && config.coalesce.get()) {
+            String flightKey = flightKey(epubFile);
+            if (flightKey != null) {
+                return flights.join(flightKey, new Supplier<ListenableFuture<List<Issue>>>() {
+
+                    @Override
+                    public ListenableFuture<List<Issue>> get() {
+                        return start(epubFile, null, priority, tenant, cache);
+                    }
+                });
+            }
+        }
+        return start(epubFile, listener, priority, tenant, cache);
+    }
+
+    /**
+     * Returns the key identifying concurrent validations of the same EPUB with the same EPUBCheck and options, or
+     * <code>null</code> if the EPUB can't be read.
+     */
+    private String flightKey(File epubFile) {
+        try {
+            return epubFile.getCanonicalPath() + '|' + epubFile.length() + '|' + epubFile.lastModified() + '|'
+                    + config.jar.get() + '|' + options();
+        } catch (IOException e) {
+            LOG.warn("Couldn't resolve the path of {}: {}", epubFile, e.getMessage());
+            return null;
+        }
+    }
+
+    /**
+     * Returns the options changing the issues returned for the same EPUB and EPUBCheck, e.g. the issue IDs are only
+     * read from a JSON report.
+     */
+    private String options() {
+        return config.engine.get() + "|" + config.report.get();
+    }
+
+    /**
+     * Returns the cache key of the given EPUB, or <code>null</code> if the EPUB can't be read. Computing the content
+     * digest of the EPUB reads it entirely, the first time.
+     */
+    private String cacheKey(ResultCache cache, File epubFile) {
+        try {
+            return cache.key(epubFile, new File(config.jar.get()), options());
+        } catch (IOException e) {
+            LOG.warn("Couldn't compute the cache key of {}: {}", epubFile, e.getMessage());
+            return null;
+        }
+    }
+
+    private ListenableFuture<List<Issue>> start(final File epubFile, final IssueListener listener,
+            Priority priority, String tenant, final ResultCache cache) {
+        final ValidationTimer timer = new ValidationTimer();
+        // set by whichever of the task and the cancel listener below leaves the queue first
+        final AtomicBoolean dequeued = new AtomicBoolean();
+        gauges.taskQueued();
+        ListenableFuture<List<Issue>> future;
+        try {
+            future = config.executor.get().submit(new Callable<List<Issue>>() {
+
+                @Override
+                public List<Issue> call() {
+                    if (!dequeued.compareAndSet(false, true)) {
+                        // cancelled before running, the result is discarded
+                        return Lists.newArrayList();
+                    }
+                    timer.start();
+                    gauges.taskStarted();
+                    try {
+                        String key = cache != null && epubFile != null && epubFile.isFile() ? cacheKey(cache,
+                                epubFile) : null;
+                        List<Issue> cached = key != null ? cache.get(key) : null;
+                        if (cached != null) {
+                            if (listener != null) {
+                                for (Issue issue : cached) {
+                                    listener.onIssue(issue);
+                                }
+                            }
+                            return cached;
+                        }
+                        List<Issue> issues = doValidate(epubFile, listener, timer);
+                        // streamed issues are not collected, and thus can't be cached
+                        if (key != null && listener == null && isCacheable(issues)) {
+                            cache.put(key, issues);
+                        }
+                        return issues;
+                    } finally {
+                        gauges.taskEnded();
+                    }
+                }
+            }, new Callable<List<Issue>>() {
+
+                @Override
+                public List<Issue> call() {
+                    return internalError(listener, "Validation rejected, the validation queue is full");
+                }
+            }, priority, tenant);
+        } catch (RejectedExecutionException e) {
+            gauges.taskDequeued();
+            throw e;
+        }
+        future.addListener(new Runnable() {
 
             @Override
-            public List<Issue> call() {
-                return doValidate(epubFile);
+            public void run() {
+                // cancelled or rejected before running
+                if (dequeued.compareAndSet(false, true)) {
+                    gauges.taskDequeued();
+                }
             }
-        });
+        }, MoreExecutors.sameThreadExecutor());
+        return future;
+    }
+
+    /**
+     * Validates the given EPUB and returns only the issue counts, by type and by message, with the first issues of
+     * each message as samples (see {@link ValidationSummary}). The issues are not collected, so that the memory used
+     * doesn't depend on the number of issues. Blocks until the validation is done.
+     */
+    public ValidationSummary summarize(final File epubFile) {
         try {
-            return result.get();
+            return summarizeAsync(epubFile).get();
         } catch (InterruptedException e) {
-            return Lists.newArrayList(new Issue(Type.INTERNAL_ERROR, "InterruptedException - " + e.getMessage()));
+            ValidationSummary.Builder summary = new ValidationSummary.Builder(0);
+            summary.onIssue(new Issue(Type.INTERNAL_ERROR, "InterruptedException - " + e.getMessage()));
+            return summary.build();
         } catch (ExecutionException e) {
             // Shouldn't happen
             throw new RuntimeException(e);
         }
     }
 
-    private List<Issue> doValidate(File epub) {
+    /**
+     * Validates the given EPUB without blocking the calling thread, and returns only the issue counts, see
+     * {@link #summarize(File)}.
+     */
+    public ListenableFuture<ValidationSummary> summarizeAsync(final File epubFile) {
+        final ValidationSummary.Builder summary = new ValidationSummary.Builder(config.summarySamples.get());
+        return Futures.transform(submit(epubFile, summary, Priority.INTERACTIVE, null),
+                new Function<List<Issue>, ValidationSummary>() {
+
+                    @Override
+                    public ValidationSummary apply(List<Issue> input) {
+                        return summary.build();
+                    }
+                });
+    }
+
+    /**
+     * Validates the given EPUB without blocking the calling thread. The returned future is completed on the given
+     * executor, so that its listeners registered with {@link MoreExecutors#sameThreadExecutor()} run there.
+     * Cancelling the returned future cancels the validation.
+     */
+    public ListenableFuture<List<Issue>> validateAsync(final File epubFile, Executor executor) {
+        final ListenableFuture<List<Issue>> validation = validateAsync(epubFile);
+        final SettableFuture<List<Issue>> result = SettableFuture.create();
+        validation.addListener(new Runnable() {
+
+            @Override
+            public void run() {
+                try {
+                    result.set(Uninterruptibles.getUninterruptibly(validation));
+                } catch (ExecutionException e) {
+                    result.setException(e.getCause());
+                } catch (CancellationException e) {
+                    result.cancel(false);
+                }
+            }
+        }, executor);
+        result.addListener(new Runnable() {
+
+            @Override
+            public void run() {
+                if (result.isCancelled()) {
+                    validation.cancel(true);
+                }
+            }
+        }, MoreExecutors.sameThreadExecutor());
+        return result;
+    }
+
+    /**
+     * Validates all the given EPUBs in the {@link Priority#BULK} lane, with at most as many validations in flight as
+     * the configured pool size. EPUBs
+     * are pulled from the iterator only when a validation slot is free, and results are delivered to the listener on
+     * the calling thread. Blocks until all the results have been delivered.
+     *
+     * @param ordered
+     *            whether results are delivered in input order (otherwise in completion order)
+     * @return the aggregate statistics of the batch
+     */
+    public BatchValidator.Stats validateAll(Iterator<File> epubs, BatchValidator.Listener listener, boolean ordered)
+            throws InterruptedException {
+        return new BatchValidator(this, config.poolSize.get()).run(epubs, listener, ordered);
+    }
+
+    /**
+     * Validates all the given EPUBs, see {@link #validateAll(Iterator, BatchValidator.Listener, boolean)}.
+     */
+    public BatchValidator.Stats validateAll(Iterable<File> epubs, BatchValidator.Listener listener, boolean ordered)
+            throws InterruptedException {
+        return validateAll(epubs.iterator(), listener, ordered);
+    }
+
+    /**
+     * Returns the counters of the result cache, or <code>null</code> if caching is disabled.
+     */
+    public ResultCache.Stats cacheStats() {
+        ResultCache cache = config.resultCache.get();
+        return cache == null ? null : cache.stats();
+    }
+
+    /**
+     * Returns the live gauges of the validation pool.
+     */
+    public PoolGauges gauges() {
+        return gauges;
+    }
+
+    /**
+     * Returns the model of the validation times, which sets the timeouts in {@link TimeoutMode#ADAPTIVE} mode.
+     */
+    public TimeoutModel timeoutModel() {
+        return timeoutModel;
+    }
+
+    /**
+     * Sets the metrics recording the validations, see {@link ValidationMetrics}.
+     *
+     * @param metrics
+     *            the metrics, or <code>null</code> to stop recording
+     */
+    public void setMetrics(ValidationMetrics metrics) {
+        this.metrics = metrics != null ? metrics : ValidationMetrics.NOOP;
+    }
+
+    private static ValidationMetrics loadMetrics() {
+        Iterator<ValidationMetrics> found = ServiceLoader.load(ValidationMetrics.class).iterator();
+        try {
+            if (found.hasNext()) {
+                return found.next();
+            }
+        } catch (ServiceConfigurationError e) {
+            LOG.warn("Couldn't load the validation metrics: {}", e.getMessage());
+        }
+        return ValidationMetrics.NOOP;
+    }
+
+    private static boolean isCacheable(List<Issue> issues) {
+        if (issues instanceof IssueList) {
+            // without creating the issues
+            IssueList list = (IssueList) issues;
+            return list.count(Type.INTERNAL_ERROR) == 0 && list.count(Type.TRUNCATED) == 0;
+        }
+        for (Issue issue : issues) {
+            if (issue.type == Type.INTERNAL_ERROR || issue.type == Type.TRUNCATED) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private List<Issue> doValidate(final File epub, IssueListener listener, ValidationTimer timer) {
+        Engine engine = epub != null ? config.engine.get() : Engine.PROCESS;
+        boolean directory = epub != null && epub.isDirectory();
+        // the EPUBCheck API only validates packed EPUBs
+        if (directory && engine == Engine.EMBEDDED) {
+            engine = Engine.PROCESS;
+        }
+        // the size of a directory says nothing about its contents
+        boolean adaptive = epub != null && !directory && config.timeoutMode.get() == TimeoutMode.ADAPTIVE;
+        // EPUBCheck only reports message IDs in JSON reports
+        boolean ids = engine == Engine.PROCESS && config.report.get() == ReportMode.JSON;
+        final Preflight preflight = epub != null && epub.isFile() && config.preflight.get() ? Preflight.check(
+                epub, ids) : null;
+        Supplier<EpubEntryIndex> entries = Suppliers.memoize(new Supplier<EpubEntryIndex>() {
+
+            @Override
+            public EpubEntryIndex get() {
+                // already read by the pre-flight check
+                if (preflight != null && preflight.index() != null) {
+                    return preflight.index();
+                }
+                return EpubEntryIndex.read(epub);
+            }
+        });
+        boolean rejected = preflight != null && preflight.isRejected();
+        List<Issue> issues;
+        if (rejected) {
+            LOG.info("Rejected {} without running EPUBCheck", epub);
+            issues = report(listener != null ? timer.count(listener) : null, preflight.issues());
+        } else {
+            long timeout = adaptive ? adaptiveTimeout(epub, entries, timer) : config.timeoutUnit.get().toNanos(
+                    config.timeout.get());
+            issues = doValidate(epub, engine, listener != null ? timer.count(listener) : null, entries, timeout,
+                    timer);
+        }
+        if (listener == null) {
+            timer.count(issues);
+        }
+        ValidationRecord record = timer.stop(epub, engine);
+        // failed validations say nothing about the time of a complete one
+        if (adaptive && !rejected && !record.timedOut && isCacheable(issues)) {
+            timeoutModel.observe(epub.length(), entries.get().size(), record.runNanos);
+        }
+        try {
+            metrics.record(record);
+        } catch (RuntimeException e) {
+            LOG.warn("Couldn't record the validation metrics: {}", e.getMessage());
+        }
+        return issues;
+    }
+
+    /**
+     * Returns the timeout of the given EPUB predicted by the {@link TimeoutModel}, between the configured floor and
+     * the configured timeout, in nanoseconds.
+     */
+    private long adaptiveTimeout(File epub, Supplier<EpubEntryIndex> entries, ValidationTimer timer) {
+        long ceiling = config.timeoutUnit.get().toNanos(config.timeout.get());
+        long predicted = timeoutModel.predict(epub.length(), entries.get().size());
+        if (predicted < 0) {
+            return ceiling;
+        }
+        long deadline = timeoutModel.deadline(predicted, config.timeoutPercentile.get(),
+                config.timeoutMultiplier.get());
+        deadline = Math.min(ceiling, Math.max(TimeUnit.SECONDS.toNanos(config.timeoutFloor.get()), deadline));
+        LOG.debug("Predicted {} ms for {}, timeout {} ms", TimeUnit.NANOSECONDS.toMillis(predicted), epub,
+                TimeUnit.NANOSECONDS.toMillis(deadline));
+        timer.adaptiveTimeout(predicted, deadline);
+        return deadline;
+    }
+
+    private List<Issue> doValidate(File epub, Engine engine, IssueListener listener,
+            Supplier<EpubEntryIndex> entries, long timeoutNanos, ValidationTimer timer) {
         if (epub != null) {
             LOG.info("Validating {}", epub);
         }
-        CommandExecutor<List<Issue>> cmdExec = new CommandExecutor<List<Issue>>(
-                Lists.newArrayList("java", "-jar", config.jar.get(), epub == null ? "-?" : epub.getPath()));
+        StatefulParser parser = new StatefulParser(epub, listener, entries, config.issuesInMemory.get(),
+                new FailFastPolicy(config.failFastFatal.get(), config.failFastErrors.get()));
         try {
-            return cmdExec.run(new StatefulParser(epub), config.timeout.get(), config.timeoutUnit.get());
+            if (engine == Engine.WORKER) {
+                return config.workerPool.get().run(epub, timer.meter(parser), timeoutNanos, TimeUnit.NANOSECONDS);
+            } else if (engine == Engine.EMBEDDED) {
+                return config.embeddedValidator.get().validate(epub, parser, timeoutNanos, TimeUnit.NANOSECONDS);
+            }
+            if (epub != null && config.report.get() == ReportMode.JSON) {
+                return runWithReport(epub, parser, timeoutNanos, timer);
+            }
+            CommandExecutor<List<Issue>> cmdExec = new CommandExecutor<List<Issue>>(command(epub));
+            return cmdExec.run(timer.meter(parser), timeoutNanos, TimeUnit.NANOSECONDS, timer);
         } catch (InterruptedException e) {
-            return Lists.newArrayList(new Issue(Type.INTERNAL_ERROR, "InterruptedException - " + e.getMessage()));
+            return internalError(listener, "InterruptedException - " + e.getMessage());
         } catch (UncheckedTimeoutException e) {
-            return Lists.newArrayList(new Issue(Type.INTERNAL_ERROR, "Process timed out"));
+            timer.timedOut();
+            return internalError(listener, "Process timed out");
         } catch (Exception e) {
-            return Lists.newArrayList(new Issue(Type.INTERNAL_ERROR,
+            Throwable cause = e.getCause() != null ? e.getCause() : e;
+            return internalError(listener, cause.getClass().getSimpleName() + " - " + e.getMessage());
+        }
+    }
+
+    /**
+     * Runs EPUBCheck with a JSON report written to a temporary file, which is read once the process has completed.
+     * The output is parsed too, for the errors which prevent the report from being written.
+     */
+    private List<Issue> runWithReport(File epub, StatefulParser parser, long timeoutNanos, ValidationTimer timer)
+            throws Exception {
+        File report = File.createTempFile("epubcheck-", ".json");
+        try {
+            CommandExecutor<List<Issue>> cmdExec = new CommandExecutor<List<Issue>>(command(epub, "-j",
+                    report.getPath()));
+            cmdExec.run(timer.meter(parser), timeoutNanos, TimeUnit.NANOSECONDS, timer);
+            // not written when EPUBCheck fails early, e.g. when the EPUB is not found
+            if (report.length() > 0) {
+                parser.processReport(report);
+            }
+            return parser.getResult();
+        } finally {
+            if (!report.delete()) {
+                LOG.warn("Couldn't delete the report {}", report);
+            }
+        }
+    }
+
+    /**
+     * Returns the command running EPUBCheck on the given EPUB (in expanded mode for a directory) with the given
+     * options, or printing its usage if the EPUB is <code>null</code>.
+     */
+    private List<String> command(File epub, String... options) {
+        List<String> command = Utils.javaCommand("-jar", config.jar.get(), epub == null ? "-?" : epub.getPath());
+        if (epub != null && epub.isDirectory()) {
+            command.add("-mode");
+            command.add("exp");
+        }
+        command.addAll(Arrays.asList(options));
+        return command;
+    }
+
+    private static List<Issue> report(IssueListener listener, List<Issue> issues) {
+        if (listener != null) {
+            for (Issue issue : issues) {
+                listener.onIssue(issue);
+            }
+        }
+        return Lists.newArrayList(issues);
+    }
 
-            e.getCause().getClass().getSimpleName() + " - " + e.getMessage()));
+    private static List<Issue> internalError(IssueListener listener, String message) {
+        Issue issue = new Issue(Type.INTERNAL_ERROR, message);
+        if (listener != null) {
+            listener.onIssue(issue);
         }
+        return Lists.newArrayList(issue);
     }
 
 }
@@ -0,0 +1,56 @@
+package org.daisy.validation.epubcheck;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.InputStreamReader;
+import java.io.PrintStream;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+
+/**
+ * Entry point of a resident EPUBCheck JVM, as spawned by {@link WorkerPool}.
+ * <p>
+ * Reads one EPUB path per line on the standard input, runs EPUBCheck's
+ * command line tool on it (in expanded mode for a directory, i.e. an unpacked
+ * EPUB) and prints its usual output on the standard output,
+ * followed by a {@link #DONE} line carrying the currently used heap size. The
+ * worker exits when its standard input is closed.
+ * <p>
+ * This class runs with only EPUBCheck on the class path, it must not depend on
+ * any other library.
+ */
+public final class EpubCheckWorker {
+
+	static final String DONE = "#EPUBCHECK-WORKER-DONE#";
+
+	private static final String CHECKER = "com.adobe.epubcheck.tool.EpubChecker";
+
+	private EpubCheckWorker() {
+	}
+
+	public static void main(String[] args) throws Exception {
+		Class<?> checker = Class.forName(CHECKER);
+		Method run = checker.getMethod("run", String[].class);
+		PrintStream out = System.out;
+		System.setErr(out);
+		BufferedReader in = new BufferedReader(new InputStreamReader(System.in,
+				"UTF-8"));
+		String path;
+		while ((path = in.readLine()) != null) {
+			try {
+				run.invoke(checker.newInstance(),
+						new Object[] { args(path) });
+			} catch (InvocationTargetException e) {
+				e.getCause().printStackTrace(out);
+			}
+			Runtime runtime = Runtime.getRuntime();
+			out.println(DONE + (runtime.totalMemory() - runtime.freeMemory()));
+			out.flush();
+		}
+	}
+
+	private static String[] args(String path) {
+		return new File(path).isDirectory() ? new String[] { path, "-mode",
+				"exp" } : new String[] { path };
+	}
+}
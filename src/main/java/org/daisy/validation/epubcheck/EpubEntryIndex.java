@@ -0,0 +1,310 @@
+package org.daisy.validation.epubcheck;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Enumeration;
+import java.util.List;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.common.base.Preconditions;
+import com.google.common.base.Supplier;
+import com.google.common.base.Suppliers;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Lists;
+
+/**
+ * The index of the entries of an EPUB.
+ * <p>
+ * Entry names are read from the ZIP central directory only, so that building
+ * the index costs proportionally to the number of entries, not to the size of
+ * the archive. An index is immutable and can be reused for several lookups.
+ * <p>
+ * File names reported by EPUBCheck are normalized against the index with a
+ * radix trie of the reversed entry names, built on the first lookup, so that a
+ * lookup costs proportionally to the length of the looked up name.
+ */
+public final class EpubEntryIndex {
+
+	private static final Logger LOG = LoggerFactory
+			.getLogger(EpubEntryIndex.class);
+
+	private static final EpubEntryIndex EMPTY = new EpubEntryIndex(
+			ImmutableList.<String> of());
+
+	private final List<String> entries;
+	private final Supplier<Node> suffixes = Suppliers
+			.memoize(new Supplier<Node>() {
+				@Override
+				public Node get() {
+					Node root = new Node();
+					for (int i = 0; i < entries.size(); i++) {
+						root.add(entries.get(i), i);
+					}
+					return root;
+				}
+			});
+
+	private EpubEntryIndex(List<String> entries) {
+		this.entries = entries;
+	}
+
+	/**
+	 * Returns an index of the given entry names.
+	 */
+	public static EpubEntryIndex of(Iterable<String> entries) {
+		return new EpubEntryIndex(ImmutableList.copyOf(entries));
+	}
+
+	/**
+	 * Reads the index of the given ZIP file, or of the given directory (an
+	 * unpacked EPUB, see {@link #readDirectory(File)}).
+	 *
+	 * @param zip
+	 *            the ZIP file or directory to index, may be <code>null</code>
+	 * @return the index of the given file, or an empty index if the file is
+	 *         <code>null</code> or a problem occurred
+	 */
+	public static EpubEntryIndex read(File zip) {
+		if (zip == null) {
+			return EMPTY;
+		}
+		if (zip.isDirectory()) {
+			return readDirectory(zip);
+		}
+		try {
+			return readChecked(zip);
+		} catch (IOException e) {
+			LOG.warn("Couldn't get ZIP entries", e);
+			return EMPTY;
+		}
+	}
+
+	/**
+	 * Reads the index of the given ZIP file, which fails if the file is not a
+	 * ZIP file or its central directory is corrupt.
+	 */
+	static EpubEntryIndex readChecked(File zip) throws IOException {
+		ZipFile zipFile = null;
+		try {
+			zipFile = new ZipFile(zip);
+			ImmutableList.Builder<String> entries = ImmutableList.builder();
+			Enumeration<? extends ZipEntry> zipEntries = zipFile.entries();
+			while (zipEntries.hasMoreElements()) {
+				entries.add(zipEntries.nextElement().getName());
+			}
+			return new EpubEntryIndex(entries.build());
+		} finally {
+			close(zipFile);
+		}
+	}
+
+	/**
+	 * Reads the index of an unpacked EPUB: the paths of the files under the
+	 * given directory, relative to it and separated with <code>/</code> like
+	 * ZIP entry names, in lexicographic order. Symbolic links are not
+	 * followed.
+	 */
+	static EpubEntryIndex readDirectory(File dir) {
+		final Path root = dir.toPath();
+		final List<String> entries = Lists.newArrayList();
+		try {
+			Files.walkFileTree(root, new SimpleFileVisitor<Path>() {
+				@Override
+				public FileVisitResult visitFile(Path file,
+						BasicFileAttributes attrs) {
+					if (!attrs.isDirectory()) {
+						StringBuilder name = new StringBuilder();
+						for (Path part : root.relativize(file)) {
+							if (name.length() > 0) {
+								name.append('/');
+							}
+							name.append(part);
+						}
+						entries.add(name.toString());
+					}
+					return FileVisitResult.CONTINUE;
+				}
+			});
+		} catch (IOException e) {
+			LOG.warn("Couldn't list the files of {}", dir, e);
+			return EMPTY;
+		}
+		Collections.sort(entries);
+		return new EpubEntryIndex(ImmutableList.copyOf(entries));
+	}
+
+	/**
+	 * Returns the entry names, in the central directory order (or in
+	 * lexicographic order for a directory).
+	 */
+	public List<String> entries() {
+		return entries;
+	}
+
+	/**
+	 * Returns the number of entries.
+	 */
+	public int size() {
+		return entries.size();
+	}
+
+	/**
+	 * Returns the first entry (in the index order) which is a suffix of the
+	 * given file name, or the file name itself if there is none. This is
+	 * equivalent to {@link Utils#normalizeFilename(List, String)}.
+	 *
+	 * @param filename
+	 *            file name to check
+	 * @return normalized filename
+	 */
+	public String normalize(String filename) {
+		Preconditions.checkNotNull(filename);
+		Node node = suffixes.get();
+		int best = node.entry;
+		int i = filename.length() - 1;
+		while (i >= 0) {
+			node = node.child(filename.charAt(i));
+			if (node == null) {
+				break;
+			}
+			int matched = node.match(filename, i);
+			if (matched < node.end - node.start) {
+				// entries only end at nodes
+				break;
+			}
+			i -= matched;
+			if (node.entry >= 0 && (best < 0 || node.entry < best)) {
+				best = node.entry;
+			}
+		}
+		return best < 0 ? filename : entries.get(best);
+	}
+
+	/**
+	 * A node of the radix trie of reversed entry names. The label of a node
+	 * is the chars of an entry name from <code>end - 1</code> down to
+	 * <code>start</code>, so that chains of single children are a single node
+	 * and labels are not copied.
+	 */
+	private static final class Node {
+
+		private static final char[] NO_CHARS = new char[0];
+		private static final Node[] NO_NODES = new Node[0];
+
+		private final String name;
+		private final int start;
+		private int end;
+		/** The first chars of the labels of the children. */
+		private char[] chars = NO_CHARS;
+		private Node[] children = NO_NODES;
+		/** The smallest index of the entries ending at this node, or -1. */
+		private int entry = -1;
+
+		private Node() {
+			this("", 0, 0);
+		}
+
+		private Node(String name, int start, int end) {
+			this.name = name;
+			this.start = start;
+			this.end = end;
+		}
+
+		private void add(String name, int index) {
+			Node node = this;
+			int i = name.length() - 1;
+			while (i >= 0) {
+				Node child = node.child(name.charAt(i));
+				if (child == null) {
+					child = new Node(name, 0, i + 1);
+					node.put(name.charAt(i), child);
+					node = child;
+					break;
+				}
+				int matched = child.match(name, i);
+				if (matched < child.end - child.start) {
+					child = child.split(matched);
+					node.put(name.charAt(i), child);
+				}
+				node = child;
+				i -= matched;
+			}
+			if (node.entry < 0) {
+				node.entry = index;
+			}
+		}
+
+		/**
+		 * Returns the number of chars of the label matching the given string,
+		 * read backwards from the given index.
+		 */
+		private int match(String string, int index) {
+			int matched = 0;
+			int length = end - start;
+			while (matched < length && index - matched >= 0
+					&& string.charAt(index - matched) == name.charAt(end - 1
+							- matched)) {
+				matched++;
+			}
+			return matched;
+		}
+
+		/**
+		 * Splits the label after the given number of chars, and returns the
+		 * new parent of this node.
+		 */
+		private Node split(int length) {
+			Node parent = new Node(name, end - length, end);
+			end -= length;
+			parent.put(name.charAt(end - 1), this);
+			return parent;
+		}
+
+		private Node child(char c) {
+			for (int i = 0; i < chars.length; i++) {
+				if (chars[i] == c) {
+					return children[i];
+				}
+			}
+			return null;
+		}
+
+		/**
+		 * Sets the child of the given first char.
+		 */
+		private void put(char c, Node child) {
+			for (int i = 0; i < chars.length; i++) {
+				if (chars[i] == c) {
+					children[i] = child;
+					return;
+				}
+			}
+			int size = chars.length;
+			chars = Arrays.copyOf(chars, size + 1);
+			children = Arrays.copyOf(children, size + 1);
+			chars[size] = c;
+			children[size] = child;
+		}
+	}
+
+	private static void close(ZipFile zipFile) {
+		if (zipFile != null) {
+			try {
+				zipFile.close();
+			} catch (IOException e) {
+				LOG.warn("Couldn't close ZIP file", e);
+			}
+		}
+	}
+}
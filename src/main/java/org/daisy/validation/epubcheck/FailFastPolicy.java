@@ -0,0 +1,72 @@
+package org.daisy.validation.epubcheck;
+
+import org.daisy.validation.epubcheck.Issue.Type;
+
+import com.google.common.base.Preconditions;
+
+/**
+ * When to stop a validation early, because its verdict is certain: at the
+ * first fatal error, or after a number of errors (fatal errors included).
+ * <p>
+ * When the policy triggers, EPUBCheck is stopped, and the issues found so far
+ * are returned, followed by a {@link Type#TRUNCATED} issue.
+ */
+public final class FailFastPolicy {
+
+	/** Validations run to completion. */
+	public static final FailFastPolicy NONE = new FailFastPolicy(false, 0);
+
+	private final boolean stopAtFatal;
+	private final int maxErrors;
+
+	/**
+	 * @param stopAtFatal
+	 *            whether to stop at the first fatal error
+	 * @param maxErrors
+	 *            the number of errors after which to stop, not positive to
+	 *            not count the errors
+	 */
+	public FailFastPolicy(boolean stopAtFatal, int maxErrors) {
+		this.stopAtFatal = stopAtFatal;
+		this.maxErrors = Math.max(0, maxErrors);
+	}
+
+	/**
+	 * Returns whether the policy can trigger at all.
+	 */
+	public boolean isEnabled() {
+		return stopAtFatal || maxErrors > 0;
+	}
+
+	/**
+	 * Returns the reason to stop after the given issue, or <code>null</code>
+	 * to go on.
+	 *
+	 * @param errorCount
+	 *            the number of errors and fatal errors so far, including the
+	 *            given issue
+	 */
+	String stopReason(Issue issue, int errorCount) {
+		Preconditions.checkNotNull(issue);
+		if (stopAtFatal && issue.type == Type.FATAL) {
+			return "Validation stopped at the first fatal error";
+		}
+		if (maxErrors > 0 && errorCount >= maxErrors && isError(issue)) {
+			return "Validation stopped after " + maxErrors
+					+ (maxErrors == 1 ? " error" : " errors");
+		}
+		return null;
+	}
+
+	static boolean isError(Issue issue) {
+		return issue.type == Type.ERROR || issue.type == Type.FATAL;
+	}
+
+	@Override
+	public String toString() {
+		return isEnabled() ? String.format("stop at %s%s",
+				stopAtFatal ? "first fatal error" : "",
+				maxErrors > 0 ? (stopAtFatal ? " or " : "") + maxErrors
+						+ " errors" : "") : "none";
+	}
+}
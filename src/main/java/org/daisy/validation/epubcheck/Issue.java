@@ -3,6 +3,7 @@ package org.daisy.validation.epubcheck;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import com.google.common.base.Objects;
 import com.google.common.base.Preconditions;
 import com.google.common.base.Strings;
 
@@ -11,7 +12,12 @@ public final class Issue {
 	private static final Logger LOG = LoggerFactory.getLogger(Issue.class);
 
 	public static enum Type {
-		FATAL, WARNING, ERROR, USAGE, INFO, EPUB_VERSION, INTERNAL_ERROR, EPUBCHECK_VERSION;
+		FATAL, WARNING, ERROR, USAGE, INFO, EPUB_VERSION, INTERNAL_ERROR, EPUBCHECK_VERSION,
+		/**
+		 * Not an EPUBCheck issue: the validation was stopped early by the
+		 * fail-fast policy, the other issues are partial.
+		 */
+		TRUNCATED;
 
 		public static Type safeValueOf(String name) {
 			Preconditions.checkNotNull(name);
@@ -31,16 +37,27 @@ public final class Issue {
 	}
 
 	public final Type type;
+	/**
+	 * The EPUBCheck message ID (e.g. <code>RSC-012</code>), or
+	 * <code>null</code> when not known (it is only read from JSON reports).
+	 */
+	public final String id;
 	public final String file;
 	public final int lineNo;
 	public final int colNo;
 	public final String txt;
 
 	public Issue(Type type, String file, int lineNo, int colNo, String txt) {
+		this(type, null, file, lineNo, colNo, txt);
+	}
+
+	public Issue(Type type, String id, String file, int lineNo, int colNo,
+			String txt) {
 		Preconditions.checkNotNull(type);
 		Preconditions.checkArgument(!Strings.isNullOrEmpty(txt),
 				"Issue message must not be empty.");
 		this.type = type;
+		this.id = id;
 		this.file = file;
 		this.lineNo = lineNo;
 		this.colNo = colNo;
@@ -55,6 +72,25 @@ public final class Issue {
 		this(type, null, -1, -1, txt);
 	}
 
+	@Override
+	public boolean equals(Object obj) {
+		if (this == obj) {
+			return true;
+		}
+		if (!(obj instanceof Issue)) {
+			return false;
+		}
+		Issue other = (Issue) obj;
+		return type == other.type && lineNo == other.lineNo
+				&& colNo == other.colNo && Objects.equal(id, other.id)
+				&& Objects.equal(file, other.file) && txt.equals(other.txt);
+	}
+
+	@Override
+	public int hashCode() {
+		return Objects.hashCode(type, id, file, lineNo, colNo, txt);
+	}
+
 	public String toString() {
 		StringBuilder sb = new StringBuilder();
 		sb.append('[').append(type).append(']');
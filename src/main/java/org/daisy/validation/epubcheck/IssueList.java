@@ -0,0 +1,333 @@
+package org.daisy.validation.epubcheck;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.util.AbstractList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.RandomAccess;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.daisy.validation.epubcheck.Issue.Type;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.common.base.FinalizablePhantomReference;
+import com.google.common.base.FinalizableReferenceQueue;
+import com.google.common.base.Preconditions;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.google.common.collect.Sets;
+import com.google.common.io.Closeables;
+
+/**
+ * A compact list of issues, for validations with very large reports.
+ * <p>
+ * The file names, message texts and message IDs are stored once per list, and
+ * the issues are stored as records of references and numbers in primitive
+ * arrays. {@link Issue} objects are created on access, so two calls of
+ * {@link #get(int)} return equal but distinct objects (issues are compared
+ * by value, so searching the list works as usual).
+ * <p>
+ * Optionally, the records beyond a given number of issues are spilled to a
+ * temporary file (the strings are still kept in memory, once). The file is
+ * deleted once the list is garbage collected.
+ * <p>
+ * Issues are only appended, until the list is sealed. A list must be filled
+ * by a single thread, and can then be read by any thread.
+ */
+public final class IssueList extends AbstractList<Issue> implements
+		RandomAccess {
+
+	private static final Logger LOG = LoggerFactory.getLogger(IssueList.class);
+
+	private static final Type[] TYPES = Type.values();
+	/** The ints of a record: type, ID, file, line, column, text. */
+	private static final int RECORD_INTS = 6;
+	private static final int RECORD_BYTES = RECORD_INTS * 4;
+	private static final int SPILL_BUFFER_RECORDS = 4096;
+
+	/** The files of the spilled lists, until they are garbage collected. */
+	private static final FinalizableReferenceQueue SPILL_QUEUE =
+			new FinalizableReferenceQueue();
+	private static final Set<SpillReference> SPILL_REFERENCES = Sets
+			.newSetFromMap(new ConcurrentHashMap<SpillReference, Boolean>());
+
+	/** The IDs of the strings, until the list is sealed. */
+	private Map<String, Integer> stringIds = Maps.newHashMap();
+	private final List<String> strings = Lists.newArrayList();
+	private final int memoryCapacity;
+	private byte[] types = new byte[16];
+	private int[] ids = new int[16];
+	private int[] files = new int[16];
+	private int[] lines = new int[16];
+	private int[] cols = new int[16];
+	private int[] txts = new int[16];
+	private final int[] typeCounts = new int[TYPES.length];
+	private int size = 0;
+	private Spill spill = null;
+	private boolean sealed = false;
+
+	/**
+	 * Creates a list kept in memory.
+	 */
+	public IssueList() {
+		this(0);
+	}
+
+	/**
+	 * Creates a list which spills the issues beyond the given number to a
+	 * temporary file.
+	 *
+	 * @param memoryCapacity
+	 *            the number of issues kept in memory, not positive to keep
+	 *            all of them in memory
+	 */
+	public IssueList(int memoryCapacity) {
+		this.memoryCapacity = memoryCapacity > 0 ? memoryCapacity
+				: Integer.MAX_VALUE;
+	}
+
+	@Override
+	public boolean add(Issue issue) {
+		Preconditions.checkNotNull(issue);
+		if (sealed) {
+			throw new UnsupportedOperationException("The list is sealed");
+		}
+		int type = issue.type.ordinal();
+		int id = intern(issue.id);
+		int file = intern(issue.file);
+		int txt = intern(issue.txt);
+		if (size < memoryCapacity) {
+			if (size == types.length) {
+				grow();
+			}
+			types[size] = (byte) type;
+			ids[size] = id;
+			files[size] = file;
+			lines[size] = issue.lineNo;
+			cols[size] = issue.colNo;
+			txts[size] = txt;
+		} else {
+			if (spill == null) {
+				spill = new Spill();
+			}
+			spill.append(type, id, file, issue.lineNo, issue.colNo, txt);
+		}
+		typeCounts[type]++;
+		size++;
+		modCount++;
+		return true;
+	}
+
+	@Override
+	public Issue get(int index) {
+		if (index < 0 || index >= size) {
+			throw new IndexOutOfBoundsException("Index: " + index + ", Size: "
+					+ size);
+		}
+		if (index < memoryCapacity) {
+			return new Issue(TYPES[types[index]], string(ids[index]),
+					string(files[index]), lines[index], cols[index],
+					string(txts[index]));
+		}
+		int[] record = spill.read(index - memoryCapacity);
+		return new Issue(TYPES[record[0]], string(record[1]),
+				string(record[2]), record[3], record[4], string(record[5]));
+	}
+
+	@Override
+	public int size() {
+		return size;
+	}
+
+	/**
+	 * Makes the list read-only, once it is complete.
+	 */
+	void seal() {
+		sealed = true;
+		stringIds = null;
+	}
+
+	/**
+	 * Returns the number of issues of the given type, without creating them.
+	 */
+	int count(Type type) {
+		return typeCounts[type.ordinal()];
+	}
+
+	/**
+	 * Returns the number of distinct strings (file names, texts and IDs).
+	 */
+	int stringCount() {
+		return strings.size();
+	}
+
+	/**
+	 * Returns the number of issues spilled to the temporary file.
+	 */
+	int spilledCount() {
+		return Math.max(0, size - memoryCapacity);
+	}
+
+	/**
+	 * Returns the temporary file of the spilled issues, or <code>null</code>.
+	 */
+	File spillFile() {
+		return spill != null ? spill.file : null;
+	}
+
+	private int intern(String string) {
+		if (string == null) {
+			return -1;
+		}
+		Integer id = stringIds.get(string);
+		if (id == null) {
+			id = strings.size();
+			strings.add(string);
+			stringIds.put(string, id);
+		}
+		return id;
+	}
+
+	private String string(int id) {
+		return id < 0 ? null : strings.get(id);
+	}
+
+	private void grow() {
+		int capacity = (int) Math.min(memoryCapacity,
+				types.length + (long) (types.length >> 1));
+		types = Arrays.copyOf(types, capacity);
+		ids = Arrays.copyOf(ids, capacity);
+		files = Arrays.copyOf(files, capacity);
+		lines = Arrays.copyOf(lines, capacity);
+		cols = Arrays.copyOf(cols, capacity);
+		txts = Arrays.copyOf(txts, capacity);
+	}
+
+	/**
+	 * The records spilled to a temporary file. Records are appended to a
+	 * buffer, which is written to the file when full, and read back by blocks
+	 * of the same size. The file is only open while a block is written or
+	 * read, so that spilled lists don't hold file descriptors.
+	 */
+	private static final class Spill {
+
+		private final File file;
+		private final ByteBuffer buffer = ByteBuffer
+				.allocate(SPILL_BUFFER_RECORDS * RECORD_BYTES);
+		/** The number of records written to the file. */
+		private volatile int written = 0;
+		/** The last block read from the file. */
+		private volatile Block block = null;
+
+		private Spill() {
+			try {
+				file = File.createTempFile("epubcheck-issues-", ".bin");
+			} catch (IOException e) {
+				throw new IllegalStateException(
+						"Couldn't create the issue spill file", e);
+			}
+			SPILL_REFERENCES.add(new SpillReference(this, file));
+		}
+
+		private void append(int... record) {
+			for (int i : record) {
+				buffer.putInt(i);
+			}
+			if (!buffer.hasRemaining()) {
+				FileOutputStream out = null;
+				try {
+					out = new FileOutputStream(file, true);
+					out.write(buffer.array(), 0, buffer.position());
+					out.close();
+				} catch (IOException e) {
+					Closeables.closeQuietly(out);
+					throw new IllegalStateException(
+							"Couldn't write the issue spill file", e);
+				}
+				written += SPILL_BUFFER_RECORDS;
+				buffer.clear();
+			}
+		}
+
+		private int[] read(int index) {
+			int[] record = new int[RECORD_INTS];
+			ByteBuffer bytes;
+			int offset;
+			if (index >= written) {
+				bytes = buffer;
+				offset = (index - written) * RECORD_BYTES;
+			} else {
+				Block block = this.block;
+				if (block == null || index < block.start
+						|| index >= block.start + SPILL_BUFFER_RECORDS) {
+					block = readBlock(index - index % SPILL_BUFFER_RECORDS);
+					this.block = block;
+				}
+				bytes = ByteBuffer.wrap(block.bytes);
+				offset = (index - block.start) * RECORD_BYTES;
+			}
+			for (int i = 0; i < RECORD_INTS; i++) {
+				record[i] = bytes.getInt(offset + i * 4);
+			}
+			return record;
+		}
+
+		private Block readBlock(int start) {
+			byte[] bytes = new byte[SPILL_BUFFER_RECORDS * RECORD_BYTES];
+			RandomAccessFile raf = null;
+			try {
+				raf = new RandomAccessFile(file, "r");
+				raf.seek((long) start * RECORD_BYTES);
+				raf.readFully(bytes);
+			} catch (IOException e) {
+				throw new IllegalStateException(
+						"Couldn't read the issue spill file", e);
+			} finally {
+				Closeables.closeQuietly(raf);
+			}
+			return new Block(start, bytes);
+		}
+	}
+
+	/**
+	 * Deletes the file of a spill once it is garbage collected.
+	 */
+	private static final class SpillReference extends
+			FinalizablePhantomReference<Spill> {
+
+		private final File file;
+
+		private SpillReference(Spill spill, File file) {
+			super(spill, SPILL_QUEUE);
+			this.file = file;
+		}
+
+		@Override
+		public void finalizeReferent() {
+			SPILL_REFERENCES.remove(this);
+			if (!file.delete()) {
+				LOG.warn("Couldn't delete the issue spill file {}", file);
+			}
+		}
+	}
+
+	/**
+	 * The records of a block of the spill file, starting at a given index.
+	 */
+	private static final class Block {
+		private final int start;
+		private final byte[] bytes;
+
+		private Block(int start, byte[] bytes) {
+			this.start = start;
+			this.bytes = bytes;
+		}
+	}
+}
@@ -0,0 +1,14 @@
+package org.daisy.validation.epubcheck;
+
+/**
+ * Receives the issues of a validation as soon as they are recognized, while
+ * EPUBCheck is still running.
+ * <p>
+ * Listeners are called from the thread running the validation, in the order
+ * of the EPUBCheck output.
+ */
+public interface IssueListener {
+
+	void onIssue(Issue issue);
+
+}
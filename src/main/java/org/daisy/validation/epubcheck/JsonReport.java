@@ -0,0 +1,167 @@
+package org.daisy.validation.epubcheck;
+
+import java.io.IOException;
+import java.io.Reader;
+
+import org.daisy.validation.epubcheck.Issue.Type;
+import org.daisy.validation.epubcheck.JsonTokenizer.Token;
+
+/**
+ * Reads the JSON report written by EPUBCheck 4 with its <code>-j</code>
+ * option, token by token, without keeping more than a message in memory.
+ * <p>
+ * Each location of a message is reported as an issue, like a line of the text
+ * output. Messages of other severities than the {@link Type issue types} (i.e.
+ * suppressed messages) are skipped, and so are the parts of the report other
+ * than the messages and the EPUB version.
+ */
+final class JsonReport {
+
+	private JsonReport() {
+	}
+
+	/**
+	 * Reads the messages of the given report, and passes their issues to the
+	 * given listener in the order of the report. The rest of the report is
+	 * not read.
+	 *
+	 * @throws IOException
+	 *             if the report can't be read or is malformed
+	 */
+	static void readIssues(Reader report, IssueListener listener)
+			throws IOException {
+		JsonTokenizer json = new JsonTokenizer(report);
+		json.expect(Token.BEGIN_OBJECT);
+		while (json.peek() == Token.NAME) {
+			json.next();
+			if ("messages".equals(json.text())) {
+				readMessages(json, listener);
+				return;
+			}
+			json.skipValue();
+		}
+		json.expect(Token.END_OBJECT);
+	}
+
+	/**
+	 * Reads the EPUB version of the publication of the given report, which
+	 * comes after the messages. The rest of the report is not read.
+	 *
+	 * @return the EPUB version, or <code>null</code>
+	 * @throws IOException
+	 *             if the report can't be read or is malformed
+	 */
+	static String readVersion(Reader report) throws IOException {
+		JsonTokenizer json = new JsonTokenizer(report);
+		json.expect(Token.BEGIN_OBJECT);
+		while (json.peek() == Token.NAME) {
+			json.next();
+			if ("publication".equals(json.text())
+					&& json.peek() == Token.BEGIN_OBJECT) {
+				return readVersion(json);
+			}
+			json.skipValue();
+		}
+		json.expect(Token.END_OBJECT);
+		return null;
+	}
+
+	private static void readMessages(JsonTokenizer json, IssueListener listener)
+			throws IOException {
+		if (json.peek() != Token.BEGIN_ARRAY) {
+			json.skipValue();
+			return;
+		}
+		json.next();
+		while (json.peek() == Token.BEGIN_OBJECT) {
+			readMessage(json, listener);
+		}
+		json.expect(Token.END_ARRAY);
+	}
+
+	private static void readMessage(JsonTokenizer json, IssueListener listener)
+			throws IOException {
+		json.expect(Token.BEGIN_OBJECT);
+		String id = null;
+		Type type = null;
+		String message = null;
+		boolean located = false;
+		// locations come after the ID, severity and message in EPUBCheck 4
+		while (json.peek() == Token.NAME) {
+			json.next();
+			String name = json.text();
+			if ("ID".equals(name)) {
+				id = json.nextString();
+			} else if ("severity".equals(name)) {
+				type = toType(json.nextString());
+			} else if ("message".equals(name)) {
+				message = json.nextString();
+			} else if ("locations".equals(name) && type != null
+					&& message != null && json.peek() == Token.BEGIN_ARRAY) {
+				json.next();
+				while (json.peek() == Token.BEGIN_OBJECT) {
+					readLocation(json, listener, type, id, message);
+					located = true;
+				}
+				json.expect(Token.END_ARRAY);
+			} else {
+				json.skipValue();
+			}
+		}
+		json.expect(Token.END_OBJECT);
+		if (!located && type != null && message != null) {
+			listener.onIssue(new Issue(type, id, null, -1, -1, message));
+		}
+	}
+
+	private static void readLocation(JsonTokenizer json,
+			IssueListener listener, Type type, String id, String message)
+			throws IOException {
+		json.expect(Token.BEGIN_OBJECT);
+		String path = null;
+		int line = -1;
+		int column = -1;
+		while (json.peek() == Token.NAME) {
+			json.next();
+			String name = json.text();
+			if ("path".equals(name)) {
+				path = json.nextString();
+			} else if ("line".equals(name)) {
+				line = json.nextInt(-1);
+			} else if ("column".equals(name)) {
+				column = json.nextInt(-1);
+			} else {
+				json.skipValue();
+			}
+		}
+		json.expect(Token.END_OBJECT);
+		listener.onIssue(new Issue(type, id, path, line, column, message));
+	}
+
+	private static String readVersion(JsonTokenizer json) throws IOException {
+		String version = null;
+		json.expect(Token.BEGIN_OBJECT);
+		while (json.peek() == Token.NAME) {
+			json.next();
+			if ("ePubVersion".equals(json.text())) {
+				version = json.nextString();
+			} else {
+				json.skipValue();
+			}
+		}
+		json.expect(Token.END_OBJECT);
+		return version;
+	}
+
+	private static Type toType(String severity) {
+		if (severity == null) {
+			return null;
+		}
+		if ("FATAL".equals(severity) || "ERROR".equals(severity)
+				|| "WARNING".equals(severity) || "USAGE".equals(severity)
+				|| "INFO".equals(severity)) {
+			return Type.valueOf(severity);
+		}
+		return null;
+	}
+}
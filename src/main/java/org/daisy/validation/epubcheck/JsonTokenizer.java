@@ -0,0 +1,333 @@
+package org.daisy.validation.epubcheck;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.util.Arrays;
+
+/**
+ * A minimal pull tokenizer of JSON text, which reads the values one token at
+ * a time without building a tree, so that the memory used doesn't depend on
+ * the size of the document.
+ * <p>
+ * Commas and colons are checked but not returned as tokens. Instances are not
+ * thread-safe.
+ */
+final class JsonTokenizer {
+
+	static enum Token {
+		BEGIN_OBJECT, END_OBJECT, BEGIN_ARRAY, END_ARRAY, NAME, STRING, NUMBER,
+		TRUE, FALSE, NULL, END_DOCUMENT
+	}
+
+	private static final int EMPTY_DOCUMENT = 0;
+	private static final int NONEMPTY_DOCUMENT = 1;
+	private static final int EMPTY_OBJECT = 2;
+	private static final int NONEMPTY_OBJECT = 3;
+	/** In an object, after a name. */
+	private static final int DANGLING_NAME = 4;
+	private static final int EMPTY_ARRAY = 5;
+	private static final int NONEMPTY_ARRAY = 6;
+
+	private final Reader reader;
+	private final char[] buffer = new char[8192];
+	private int pos = 0;
+	private int limit = 0;
+	private final StringBuilder text = new StringBuilder();
+	/** The token returned by {@link #peek()}, or <code>null</code>. */
+	private Token peeked = null;
+
+	/** The scopes of the enclosing containers, innermost last. */
+	private int[] scopes = new int[32];
+	private int depth = 1;
+
+	JsonTokenizer(Reader reader) {
+		this.reader = reader;
+	}
+
+	/**
+	 * Returns the type of the next token, without consuming it.
+	 */
+	Token peek() throws IOException {
+		if (peeked == null) {
+			peeked = read();
+		}
+		return peeked;
+	}
+
+	/**
+	 * Consumes the next token, which must be of the given type.
+	 */
+	void expect(Token token) throws IOException {
+		Token next = next();
+		if (next != token) {
+			throw syntaxError("Expected " + token + " but was " + next);
+		}
+	}
+
+	/**
+	 * Consumes the next token and returns its type. The text of names, strings
+	 * and numbers is then returned by {@link #text()}.
+	 */
+	Token next() throws IOException {
+		Token token = peek();
+		peeked = null;
+		return token;
+	}
+
+	/**
+	 * Returns the text of the last name, string or number token.
+	 */
+	String text() {
+		return text.toString();
+	}
+
+	/**
+	 * Consumes the next value (a string, number, literal, object or array).
+	 */
+	void skipValue() throws IOException {
+		int depth = 0;
+		do {
+			switch (next()) {
+			case BEGIN_OBJECT:
+			case BEGIN_ARRAY:
+				depth++;
+				break;
+			case END_OBJECT:
+			case END_ARRAY:
+				depth--;
+				break;
+			case END_DOCUMENT:
+				throw syntaxError("Unexpected end of document");
+			default:
+				break;
+			}
+		} while (depth > 0);
+	}
+
+	/**
+	 * Consumes the next value, and returns it as a string: the text of a
+	 * string or number, or <code>null</code> for any other value.
+	 */
+	String nextString() throws IOException {
+		Token token = peek();
+		if (token == Token.STRING || token == Token.NUMBER) {
+			next();
+			return text();
+		}
+		skipValue();
+		return null;
+	}
+
+	/**
+	 * Consumes the next value, and returns it as an integer, or the given
+	 * default value if it isn't an integer.
+	 */
+	int nextInt(int defaultValue) throws IOException {
+		String number = peek() == Token.NUMBER ? nextString() : null;
+		if (number == null) {
+			skipValue();
+			return defaultValue;
+		}
+		try {
+			return Integer.parseInt(number);
+		} catch (NumberFormatException e) {
+			return defaultValue;
+		}
+	}
+
+	private Token read() throws IOException {
+		int c;
+		switch (scopes[depth - 1]) {
+		case EMPTY_DOCUMENT:
+			scopes[depth - 1] = NONEMPTY_DOCUMENT;
+			return readValue(nextNonWhitespace());
+		case NONEMPTY_DOCUMENT:
+			if (nextNonWhitespace() != -1) {
+				throw syntaxError("Unexpected data after the document");
+			}
+			return Token.END_DOCUMENT;
+		case EMPTY_OBJECT:
+		case NONEMPTY_OBJECT:
+			c = nextNonWhitespace();
+			if (c == '}') {
+				depth--;
+				return Token.END_OBJECT;
+			}
+			if (scopes[depth - 1] == NONEMPTY_OBJECT) {
+				if (c != ',') {
+					throw syntaxError("Expected ',' or '}'");
+				}
+				c = nextNonWhitespace();
+			}
+			if (c != '"') {
+				throw syntaxError("Expected a name");
+			}
+			readString();
+			scopes[depth - 1] = DANGLING_NAME;
+			return Token.NAME;
+		case DANGLING_NAME:
+			if (nextNonWhitespace() != ':') {
+				throw syntaxError("Expected ':'");
+			}
+			scopes[depth - 1] = NONEMPTY_OBJECT;
+			return readValue(nextNonWhitespace());
+		case EMPTY_ARRAY:
+		case NONEMPTY_ARRAY:
+			c = nextNonWhitespace();
+			if (c == ']') {
+				depth--;
+				return Token.END_ARRAY;
+			}
+			if (scopes[depth - 1] == NONEMPTY_ARRAY) {
+				if (c != ',') {
+					throw syntaxError("Expected ',' or ']'");
+				}
+				c = nextNonWhitespace();
+			}
+			scopes[depth - 1] = NONEMPTY_ARRAY;
+			return readValue(c);
+		default:
+			throw new IllegalStateException();
+		}
+	}
+
+	private Token readValue(int c) throws IOException {
+		switch (c) {
+		case '{':
+			push(EMPTY_OBJECT);
+			return Token.BEGIN_OBJECT;
+		case '[':
+			push(EMPTY_ARRAY);
+			return Token.BEGIN_ARRAY;
+		case '"':
+			readString();
+			return Token.STRING;
+		case 't':
+			readLiteral("rue");
+			return Token.TRUE;
+		case 'f':
+			readLiteral("alse");
+			return Token.FALSE;
+		case 'n':
+			readLiteral("ull");
+			return Token.NULL;
+		default:
+			if (c == '-' || c >= '0' && c <= '9') {
+				readNumber((char) c);
+				return Token.NUMBER;
+			}
+			throw syntaxError(c == -1 ? "Unexpected end of document"
+					: "Unexpected '" + (char) c + "'");
+		}
+	}
+
+	private void push(int scope) {
+		if (depth == scopes.length) {
+			scopes = Arrays.copyOf(scopes, depth * 2);
+		}
+		scopes[depth++] = scope;
+	}
+
+	private void readString() throws IOException {
+		text.setLength(0);
+		while (true) {
+			int c = nextChar();
+			if (c == '"') {
+				return;
+			} else if (c == '\\') {
+				text.append(readEscape());
+			} else if (c == -1) {
+				throw syntaxError("Unterminated string");
+			} else {
+				text.append((char) c);
+			}
+		}
+	}
+
+	private char readEscape() throws IOException {
+		int c = nextChar();
+		switch (c) {
+		case '"':
+		case '\\':
+		case '/':
+			return (char) c;
+		case 'b':
+			return '\b';
+		case 'f':
+			return '\f';
+		case 'n':
+			return '\n';
+		case 'r':
+			return '\r';
+		case 't':
+			return '\t';
+		case 'u':
+			int code = 0;
+			for (int i = 0; i < 4; i++) {
+				int digit = Character.digit(nextChar(), 16);
+				if (digit < 0) {
+					throw syntaxError("Invalid unicode escape");
+				}
+				code = code * 16 + digit;
+			}
+			return (char) code;
+		default:
+			throw syntaxError("Invalid escape");
+		}
+	}
+
+	private void readLiteral(String rest) throws IOException {
+		for (int i = 0; i < rest.length(); i++) {
+			if (nextChar() != rest.charAt(i)) {
+				throw syntaxError("Invalid literal");
+			}
+		}
+	}
+
+	private void readNumber(char first) throws IOException {
+		text.setLength(0);
+		text.append(first);
+		while (true) {
+			if (pos == limit && !fill()) {
+				return;
+			}
+			char c = buffer[pos];
+			if (c >= '0' && c <= '9' || c == '.' || c == 'e' || c == 'E'
+					|| c == '+' || c == '-') {
+				text.append(c);
+				pos++;
+			} else {
+				return;
+			}
+		}
+	}
+
+	private int nextNonWhitespace() throws IOException {
+		int c;
+		do {
+			c = nextChar();
+		} while (c == ' ' || c == '\t' || c == '\n' || c == '\r');
+		return c;
+	}
+
+	private int nextChar() throws IOException {
+		if (pos == limit && !fill()) {
+			return -1;
+		}
+		return buffer[pos++];
+	}
+
+	private boolean fill() throws IOException {
+		limit = reader.read(buffer, 0, buffer.length);
+		pos = 0;
+		if (limit <= 0) {
+			limit = 0;
+			return false;
+		}
+		return true;
+	}
+
+	private IOException syntaxError(String message) {
+		return new IOException("Malformed JSON: " + message);
+	}
+}
@@ -0,0 +1,334 @@
+package org.daisy.validation.epubcheck;
+
+import org.daisy.validation.epubcheck.Issue.Type;
+
+/**
+ * Hand-written scanners recognizing the most frequent lines of the EPUBCheck
+ * output, with the same results as the corresponding {@link Patterns} but
+ * without allocating matchers. The scanners work on character sequences, so
+ * that the lines can be read into a reused buffer (see
+ * {@link CharLineProcessor}): strings are only created for the parts of the
+ * lines which become issues.
+ * <p>
+ * The scanners treat every character as matching the regex <code>.</code>,
+ * they must only be used on lines for which {@link #isPlain(CharSequence)} is
+ * <code>true</code>.
+ * <p>
+ * Instances are reused for successive lines: {@link #scanIssue(CharSequence)}
+ * records the positions of the issue parts in the instance fields. Instances
+ * are not thread-safe.
+ */
+final class LineScanner {
+
+	private static final String EPUBCHECK_VERSION = "EPUBCheck v";
+	private static final String EPUB_VERSION = "Validating using EPUB version ";
+	private static final String EPUB_VERSION_END = " rules";
+	private static final String[] IRRELEVANT = { "Check finished with errors",
+			"Check finished with warnings", "EPUBCheck completed" };
+	private static final String NO_ERRORS = "No errors or warnings detected";
+	/** Printed with a JSON report. */
+	private static final String EPUB_NAME = "Epub Name: ";
+	/** Printed with a JSON report, '#' stands for <code>\d+</code>. */
+	private static final String DURATION = "Process duration: #ms";
+	/** '#' stands for <code>\d+</code>. */
+	private static final String MESSAGES = "Messages: # fatal / # errors / # warnings / # info";
+
+	Type type;
+	int fileStart;
+	int fileEnd;
+	int lineStart;
+	int lineEnd;
+	int colStart;
+	int colEnd;
+	int messageStart;
+
+	/**
+	 * Returns <code>true</code> if the line contains no character which is a
+	 * line terminator for {@link java.util.regex.Pattern} (CR and LF never
+	 * appear in a line read by a reader).
+	 */
+	static boolean isPlain(CharSequence line) {
+		for (int i = 0; i < line.length(); i++) {
+			char c = line.charAt(i);
+			if (c == '\u0085' || c == '\u2028' || c == '\u2029' || c == '\n'
+					|| c == '\r') {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Equivalent to matching {@link Patterns#ISSUE}. On success, the issue
+	 * type and the positions of the file, line, column and message are
+	 * recorded in this scanner (start positions of absent parts are -1).
+	 */
+	boolean scanIssue(CharSequence line) {
+		int length = line.length();
+		if (length == 0) {
+			return false;
+		}
+		int idStart;
+		switch (line.charAt(0)) {
+		case 'F':
+			type = Type.FATAL;
+			idStart = prefix(line, "FATAL(");
+			break;
+		case 'E':
+			type = Type.ERROR;
+			idStart = prefix(line, "ERROR(");
+			break;
+		case 'W':
+			type = Type.WARNING;
+			idStart = prefix(line, "WARNING(");
+			break;
+		case 'I':
+			type = Type.INFO;
+			idStart = prefix(line, "INFO(");
+			break;
+		case 'U':
+			type = Type.USAGE;
+			idStart = prefix(line, "USAGE(");
+			break;
+		default:
+			return false;
+		}
+		if (idStart < 0) {
+			return false;
+		}
+		// the message ID is the first token, up to the "): " ending it
+		int idEnd = idStart;
+		while (idEnd < length && !isWhitespace(line.charAt(idEnd))) {
+			idEnd++;
+		}
+		if (idEnd - idStart < 3 || idEnd == length
+				|| line.charAt(idEnd) != ' ' || line.charAt(idEnd - 1) != ':'
+				|| line.charAt(idEnd - 2) != ')') {
+			return false;
+		}
+		// the file is the shortest string followed by an optional location
+		// and ": "
+		fileStart = idEnd + 1;
+		for (int i = fileStart; i < length; i++) {
+			if (line.charAt(i) == '(' && scanLocation(line, i)) {
+				fileEnd = i;
+				return true;
+			}
+			if (isSeparator(line, i)) {
+				fileEnd = i;
+				lineStart = lineEnd = colStart = colEnd = -1;
+				messageStart = i + 2;
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * Scans <code>(-?\d+(,-?\d+)?): </code> at the given position.
+	 */
+	private boolean scanLocation(CharSequence line, int start) {
+		int i = start + 1;
+		int end = digits(line, i);
+		if (end < 0) {
+			return false;
+		}
+		int colS = -1;
+		int colE = -1;
+		if (end < line.length() && line.charAt(end) == ',') {
+			int col = digits(line, end + 1);
+			if (col < 0) {
+				return false;
+			}
+			colS = end + 1;
+			colE = col;
+		}
+		int close = colE < 0 ? end : colE;
+		if (close >= line.length() || line.charAt(close) != ')'
+				|| !isSeparator(line, close + 1)) {
+			return false;
+		}
+		lineStart = i;
+		lineEnd = end;
+		colStart = colS;
+		colEnd = colE;
+		messageStart = close + 3;
+		return true;
+	}
+
+	/**
+	 * Scans <code>-?\d+</code> and returns the end position, or -1.
+	 */
+	private static int digits(CharSequence line, int start) {
+		int i = start;
+		if (i < line.length() && line.charAt(i) == '-') {
+			i++;
+		}
+		int digitsStart = i;
+		while (i < line.length() && isDigit(line.charAt(i))) {
+			i++;
+		}
+		return i > digitsStart ? i : -1;
+	}
+
+	/**
+	 * Equivalent to matching {@link Patterns#EPUBCHECK_VERSION}.
+	 *
+	 * @return the version, or <code>null</code> if the line doesn't match
+	 */
+	static String epubcheckVersion(CharSequence line) {
+		return startsWithIgnoreCase(line, EPUBCHECK_VERSION) ? substring(line,
+				EPUBCHECK_VERSION.length(), line.length()) : null;
+	}
+
+	/**
+	 * Equivalent to matching {@link Patterns#EPUB_VERSION}.
+	 *
+	 * @return the version, or <code>null</code> if the line doesn't match
+	 */
+	static String epubVersion(CharSequence line) {
+		if (!startsWith(line, EPUB_VERSION, 0)) {
+			return null;
+		}
+		int start = EPUB_VERSION.length();
+		int end = start;
+		while (end < line.length() && !isWhitespace(line.charAt(end))) {
+			end++;
+		}
+		if (end == start || line.length() != end + EPUB_VERSION_END.length() + 1
+				|| !startsWith(line, EPUB_VERSION_END, end)) {
+			return null;
+		}
+		return substring(line, start, end);
+	}
+
+	/**
+	 * Equivalent to matching {@link Patterns#IRRELEVANT}, for lines which
+	 * don't match {@link Patterns#EPUBCHECK_VERSION}.
+	 */
+	static boolean isIrrelevant(CharSequence line) {
+		int i = 0;
+		while (i < line.length() && isWhitespace(line.charAt(i))) {
+			i++;
+		}
+		if (i == line.length()) {
+			return true;
+		}
+		for (String irrelevant : IRRELEVANT) {
+			if (line.length() == irrelevant.length()
+					&& startsWithIgnoreCase(line, irrelevant)) {
+				return true;
+			}
+		}
+		return line.length() == NO_ERRORS.length() + 1
+				&& startsWithIgnoreCase(line, NO_ERRORS)
+				|| matchesTemplate(line, MESSAGES)
+				|| startsWithIgnoreCase(line, EPUB_NAME)
+				|| matchesTemplate(line, DURATION);
+	}
+
+	/**
+	 * Equivalent to matching {@link Patterns#INDENTED}.
+	 */
+	static boolean isIndented(CharSequence line) {
+		return line.length() > 0 && isWhitespace(line.charAt(0));
+	}
+
+	/**
+	 * Equivalent to matching {@link Patterns#CAUSED_BY}.
+	 */
+	static boolean isCausedBy(CharSequence line) {
+		return "Caused by:".contentEquals(line);
+	}
+
+	private static int prefix(CharSequence line, String prefix) {
+		return startsWith(line, prefix, 0) ? prefix.length() : -1;
+	}
+
+	/**
+	 * Returns the given part of the line as a string, which is only created
+	 * for the lines which become issues.
+	 */
+	static String substring(CharSequence line, int start, int end) {
+		return line.subSequence(start, end).toString();
+	}
+
+	private static boolean startsWith(CharSequence line, String prefix,
+			int offset) {
+		if (line.length() - offset < prefix.length()) {
+			return false;
+		}
+		for (int i = 0; i < prefix.length(); i++) {
+			if (line.charAt(offset + i) != prefix.charAt(i)) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	private static boolean isSeparator(CharSequence line, int i) {
+		return i + 1 < line.length() && line.charAt(i) == ':'
+				&& line.charAt(i + 1) == ' ';
+	}
+
+	private static boolean matchesTemplate(CharSequence line, String template) {
+		int i = 0;
+		for (int t = 0; t < template.length(); t++) {
+			char c = template.charAt(t);
+			if (c == '#') {
+				int start = i;
+				while (i < line.length() && isDigit(line.charAt(i))) {
+					i++;
+				}
+				if (i == start) {
+					return false;
+				}
+			} else if (i < line.length() && equalsIgnoreCase(line.charAt(i), c)) {
+				i++;
+			} else {
+				return false;
+			}
+		}
+		return i == line.length();
+	}
+
+	private static boolean startsWithIgnoreCase(CharSequence line, String prefix) {
+		if (line.length() < prefix.length()) {
+			return false;
+		}
+		for (int i = 0; i < prefix.length(); i++) {
+			if (!equalsIgnoreCase(line.charAt(i), prefix.charAt(i))) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Compares as {@link java.util.regex.Pattern#CASE_INSENSITIVE}, which
+	 * only folds US-ASCII characters.
+	 */
+	private static boolean equalsIgnoreCase(char a, char b) {
+		return a == b || a < 128 && b < 128
+				&& toLowerCase(a) == toLowerCase(b);
+	}
+
+	private static char toLowerCase(char c) {
+		return c >= 'A' && c <= 'Z' ? (char) (c + ('a' - 'A')) : c;
+	}
+
+	/**
+	 * The regex <code>\d</code> class.
+	 */
+	private static boolean isDigit(char c) {
+		return c >= '0' && c <= '9';
+	}
+
+	/**
+	 * The regex <code>\s</code> class.
+	 */
+	private static boolean isWhitespace(char c) {
+		return c == ' ' || c == '\t' || c == '\n' || c == '\u000B'
+				|| c == '\f' || c == '\r';
+	}
+}
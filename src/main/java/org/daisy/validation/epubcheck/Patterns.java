@@ -20,6 +20,8 @@ final class Patterns {
 					+ "|EPUBCheck v\\S+"
 					+ "|No errors or warnings detected."
 					+ "|EPUBCheck completed"
+					+ "|Epub Name: .*"
+					+ "|Process duration: (\\d+)ms"
 					+ "|Messages: (\\d+) fatal / (\\d+) errors / (\\d+) warnings / (\\d+) info",
 					Pattern.CASE_INSENSITIVE);
 	static final Pattern ISSUE = Pattern
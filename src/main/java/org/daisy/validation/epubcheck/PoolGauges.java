@@ -0,0 +1,70 @@
+package org.daisy.validation.epubcheck;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Live gauges of the validation pool, to be polled by a monitoring system.
+ */
+public final class PoolGauges {
+
+	private static final AtomicInteger RUNNING_PROCESSES = new AtomicInteger();
+
+	private final AtomicInteger activeTasks = new AtomicInteger();
+	private final AtomicInteger queuedTasks = new AtomicInteger();
+
+	PoolGauges() {
+	}
+
+	/**
+	 * The number of validations currently running.
+	 */
+	public int activeTasks() {
+		return activeTasks.get();
+	}
+
+	/**
+	 * The number of validations waiting for a thread of the pool.
+	 */
+	public int queuedTasks() {
+		return queuedTasks.get();
+	}
+
+	/**
+	 * The number of running EPUBCheck child processes (including the idle
+	 * resident worker JVMs), in this JVM.
+	 */
+	public int runningProcesses() {
+		return RUNNING_PROCESSES.get();
+	}
+
+	void taskQueued() {
+		queuedTasks.incrementAndGet();
+	}
+
+	void taskDequeued() {
+		queuedTasks.decrementAndGet();
+	}
+
+	void taskStarted() {
+		queuedTasks.decrementAndGet();
+		activeTasks.incrementAndGet();
+	}
+
+	void taskEnded() {
+		activeTasks.decrementAndGet();
+	}
+
+	static void processStarted() {
+		RUNNING_PROCESSES.incrementAndGet();
+	}
+
+	static void processEnded() {
+		RUNNING_PROCESSES.decrementAndGet();
+	}
+
+	@Override
+	public String toString() {
+		return String.format("%d active, %d queued, %d processes",
+				activeTasks(), queuedTasks(), runningProcesses());
+	}
+}
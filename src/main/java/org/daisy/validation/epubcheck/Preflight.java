@@ -0,0 +1,158 @@
+package org.daisy.validation.epubcheck;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import org.daisy.validation.epubcheck.Issue.Type;
+
+import com.google.common.base.Charsets;
+import com.google.common.base.Preconditions;
+import com.google.common.collect.ImmutableList;
+import com.google.common.io.ByteStreams;
+import com.google.common.io.Closeables;
+
+/**
+ * A structural check of an EPUB in the current JVM, which finds the EPUBs
+ * EPUBCheck would reject with a fatal error before checking anything else, so
+ * that EPUBCheck doesn't have to be run for them:
+ * <ul>
+ * <li>files which are not ZIP files, or with a corrupt central directory</li>
+ * <li>ZIP files without a <code>META-INF/container.xml</code> entry</li>
+ * </ul>
+ * The issues of a rejected EPUB are the ones EPUBCheck reports, including a
+ * missing or misplaced <code>mimetype</code> entry. EPUBs with other problems
+ * (e.g. only a misplaced <code>mimetype</code> entry) pass the check, as
+ * EPUBCheck goes on validating them.
+ * <p>
+ * Like the issues parsed from EPUBCheck, the issues only have a message ID
+ * when EPUBCheck would have written a JSON report.
+ */
+final class Preflight {
+
+	static final String CONTAINER = "META-INF/container.xml";
+
+	private static final String MIMETYPE = "mimetype";
+	/** The size of a ZIP local file header, without the name. */
+	private static final int LOCAL_HEADER_SIZE = 30;
+
+	private final List<Issue> issues;
+	private final EpubEntryIndex index;
+
+	private Preflight(List<Issue> issues, EpubEntryIndex index) {
+		this.issues = issues;
+		this.index = index;
+	}
+
+	/**
+	 * Checks the given EPUB file.
+	 *
+	 * @param ids
+	 *            whether the issues have EPUBCheck message IDs
+	 */
+	static Preflight check(File epub, boolean ids) {
+		Preconditions.checkNotNull(epub);
+		String path = epub.getPath();
+		byte[] header = readHeader(epub);
+		EpubEntryIndex index;
+		try {
+			index = EpubEntryIndex.readChecked(epub);
+		} catch (IOException e) {
+			ImmutableList.Builder<Issue> issues = ImmutableList.builder();
+			if (!isZipHeader(header)) {
+				issues.add(new Issue(Type.ERROR, id(ids, "PKG-003"), path, -1,
+						-1,
+						"Unable to read EPUB file header. This is likely a corrupted EPUB file."));
+			}
+			issues.add(new Issue(Type.FATAL, id(ids, "PKG-008"), path, -1, -1,
+					"Unable to read file '" + e.getMessage() + "'."));
+			return new Preflight(issues.build(), null);
+		}
+		if (index.entries().contains(CONTAINER)) {
+			return new Preflight(Collections.<Issue> emptyList(), index);
+		}
+		ImmutableList.Builder<Issue> issues = ImmutableList.builder();
+		if (!isMimetypeFirst(header)) {
+			issues.add(new Issue(Type.ERROR, id(ids, "PKG-006"), path, -1, -1,
+					"Mimetype file entry is missing or is not the first file in the archive."));
+		}
+		issues.add(new Issue(Type.FATAL, id(ids, "RSC-002"), path, -1, -1,
+				"Required " + CONTAINER + " resource could not be found."));
+		issues.add(new Issue(Type.ERROR, id(ids, "RSC-001"), path, -1, -1,
+				"File '" + CONTAINER + "' could not be found."));
+		return new Preflight(issues.build(), index);
+	}
+
+	private static String id(boolean ids, String id) {
+		return ids ? id : null;
+	}
+
+	/**
+	 * Returns the issues of a rejected EPUB, or an empty list if the EPUB
+	 * passed the check.
+	 */
+	List<Issue> issues() {
+		return issues;
+	}
+
+	/**
+	 * Returns whether the EPUB was rejected, i.e. EPUBCheck doesn't need to
+	 * be run.
+	 */
+	boolean isRejected() {
+		return !issues.isEmpty();
+	}
+
+	/**
+	 * Returns the entry index read by the check, or <code>null</code> if the
+	 * file is not a ZIP file.
+	 */
+	EpubEntryIndex index() {
+		return index;
+	}
+
+	/**
+	 * Returns the first local file header of the given file, with room for
+	 * the <code>mimetype</code> name, or as many bytes as the file has.
+	 */
+	private static byte[] readHeader(File file) {
+		byte[] header = new byte[LOCAL_HEADER_SIZE + MIMETYPE.length()];
+		InputStream is = null;
+		try {
+			is = new FileInputStream(file);
+			int read = ByteStreams.read(is, header, 0, header.length);
+			return read == header.length ? header : Arrays.copyOf(header,
+					read);
+		} catch (IOException e) {
+			return new byte[0];
+		} finally {
+			Closeables.closeQuietly(is);
+		}
+	}
+
+	private static boolean isZipHeader(byte[] header) {
+		return header.length >= 4 && header[0] == 'P' && header[1] == 'K'
+				&& header[2] == 3 && header[3] == 4;
+	}
+
+	/**
+	 * Returns whether the first entry is a stored <code>mimetype</code>
+	 * entry.
+	 */
+	private static boolean isMimetypeFirst(byte[] header) {
+		if (!isZipHeader(header) || header.length < LOCAL_HEADER_SIZE
+				+ MIMETYPE.length()) {
+			return false;
+		}
+		int method = header[8] & 0xff | (header[9] & 0xff) << 8;
+		int nameLength = header[26] & 0xff | (header[27] & 0xff) << 8;
+		return method == 0
+				&& nameLength == MIMETYPE.length()
+				&& MIMETYPE.equals(new String(header, LOCAL_HEADER_SIZE,
+						nameLength, Charsets.US_ASCII));
+	}
+}
@@ -0,0 +1,16 @@
+package org.daisy.validation.epubcheck;
+
+/**
+ * The scheduling lanes of the validation pool.
+ * <p>
+ * Waiting interactive validations always start before waiting bulk
+ * validations, and bulk validations can't use the threads reserved for
+ * interactive validations (see the <code>epubcheck.interactive.reserved</code>
+ * property), so that a large batch doesn't starve single validations.
+ */
+public enum Priority {
+	/** Single validations, typically waited for by a user. */
+	INTERACTIVE,
+	/** Batch validations. */
+	BULK
+}
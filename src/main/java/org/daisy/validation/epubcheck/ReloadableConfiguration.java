@@ -6,6 +6,13 @@ import java.io.IOException;
 import java.io.InputStream;
 import java.net.URISyntaxException;
 import java.net.URL;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.FileSystems;
+import java.nio.file.Path;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
 import java.util.Map;
 import java.util.Properties;
 import java.util.concurrent.ScheduledThreadPoolExecutor;
@@ -15,82 +22,132 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import com.google.common.base.Supplier;
-import com.google.common.base.Suppliers;
 import com.google.common.collect.ImmutableMap;
 import com.google.common.collect.Maps;
 import com.google.common.io.Closeables;
 import com.google.common.util.concurrent.MoreExecutors;
 
+/**
+ * A configuration read from a properties file on the class path, and reloaded
+ * when the file changes.
+ * <p>
+ * The properties are published as an immutable snapshot through a volatile
+ * reference. Each {@link ConfigItem} keeps its typed value with the snapshot
+ * it was computed from, so that reading an item doesn't lock: the item is
+ * only recomputed, under the configuration monitor, the first time it is read
+ * after a reload.
+ * <p>
+ * The file is watched with a {@link WatchService}, so that changes take
+ * effect right away, and is also polled, in case the watch service misses
+ * changes or is not available.
+ */
 public abstract class ReloadableConfiguration {
 
 	private static final Logger LOG = LoggerFactory
 			.getLogger(ReloadableConfiguration.class);
 
+	/** The polling period when the file is watched. */
+	private static final long WATCHED_POLL_SECONDS = 60;
+	/** The polling period when the file can't be watched. */
+	private static final long UNWATCHED_POLL_SECONDS = 5;
+
 	public static interface Default {
 		String getName();
 
 		String getValue();
 	}
 
+	/**
+	 * The value of an item, with the string it was created from and the
+	 * snapshot it is current for.
+	 */
+	private static final class Value<T> {
+		private final Map<String, String> config;
+		private final String string;
+		private final T value;
+
+		private Value(Map<String, String> config, String string, T value) {
+			this.config = config;
+			this.string = string;
+			this.value = value;
+		}
+	}
+
 	protected abstract class ConfigItem<T> implements Supplier<T> {
 		private final Default def;
-		private String currentValue;
-		private Supplier<T> value;
+		private volatile Value<T> current = null;
 
 		protected ConfigItem(Default def) {
 			this.def = def;
-			this.currentValue = def.getValue();
-			this.value = Suppliers.memoize(new Supplier<T>() {
-				@Override
-				public T get() {
-					return newValue(currentValue, null);
-				}
-			});
 		}
 
 		public final T get() {
-			return get(config);
+			Map<String, String> config = ReloadableConfiguration.this.config;
+			Value<T> value = current;
+			if (value != null && value.config == config) {
+				return value.value;
+			}
+			return refresh(config);
 		}
 
-		private T get(Map<String, String> config) {
+		private T refresh(Map<String, String> config) {
 			synchronized (ReloadableConfiguration.this) {
+				Value<T> value = current;
+				if (value != null && value.config == config) {
+					// refreshed concurrently
+					return value.value;
+				}
 				String newString = config.get(def.getName());
-				if (!currentValue.equals(newString)) {
-					T old = value.get();
-					try {
-						value = Suppliers.ofInstance(newValue(newString, old));
-						currentValue = newString;
-					} catch (Exception e) {
-						LOG.warn(
-								"Bad value '{}' for '{}', reverting to default {}",
-								new Object[] { newString, def.getName(),
-										def.getValue() });
-						if (!def.getValue().equals(currentValue)) {
-							value = Suppliers.ofInstance(newValue(
-									def.getValue(), old));
-							currentValue = def.getValue();
-						}
+				if (value != null && value.string.equals(newString)) {
+					current = new Value<T>(config, value.string, value.value);
+					return value.value;
+				}
+				T old = value != null ? value.value : null;
+				try {
+					current = new Value<T>(config, newString, newValue(
+							newString, old));
+				} catch (Exception e) {
+					LOG.warn(
+							"Bad value '{}' for '{}', reverting to default {}",
+							new Object[] { newString, def.getName(),
+									def.getValue() });
+					if (value == null || !def.getValue().equals(value.string)) {
+						current = new Value<T>(config, def.getValue(),
+								newValue(def.getValue(), old));
+					} else {
+						current = new Value<T>(config, value.string,
+								value.value);
 					}
 				}
+				return current.value;
 			}
-			return value.get();
 		}
 
 		protected abstract T newValue(String string, T old);
 	}
 
 	private final File file;
-	private long lastUpdate = 0L;
-	private Map<String, String> config;
+	private final Object reloadLock = new Object();
+	private long lastModified = -1L;
+	private volatile Map<String, String> config;
 	private final Map<String, String> defaultConfig;
 
 	protected ReloadableConfiguration(Iterable<? extends Default> defaults) {
-		this.file = findProperties();
+		this(defaults, null);
+	}
+
+	/**
+	 * Creates a configuration read from the given file, or from the
+	 * properties found on the class path if <code>null</code>.
+	 */
+	ReloadableConfiguration(Iterable<? extends Default> defaults, File file) {
+		this.file = file != null ? file : findProperties();
 		ImmutableMap.Builder<String, String> builder = ImmutableMap.builder();
 		for (Default def : defaults) {
 			builder.put(def.getName(), def.getValue());
 		}
 		this.defaultConfig = builder.build();
+		this.config = defaultConfig;
 		reload();
 	}
 
@@ -108,12 +165,21 @@ public abstract class ReloadableConfiguration {
 			} catch (URISyntaxException e) {
 				LOG.warn("Couldn't load configuration properties: {}",
 						e.getMessage());
+			} catch (IllegalArgumentException e) {
+				// e.g. properties in a jar
+				LOG.warn("Couldn't load configuration properties: {}",
+						e.getMessage());
 			}
 		}
 		return file;
 	}
 
 	protected final void initAutoreload() {
+		if (file == null) {
+			return;
+		}
+		boolean watched = watch();
+		long period = watched ? WATCHED_POLL_SECONDS : UNWATCHED_POLL_SECONDS;
 		MoreExecutors.getExitingScheduledExecutorService(
 				new ScheduledThreadPoolExecutor(1), 0, TimeUnit.SECONDS)
 				.scheduleAtFixedRate(new Runnable() {
@@ -121,21 +187,91 @@ public abstract class ReloadableConfiguration {
 					public void run() {
 						reload();
 					}
-				}, 1, 1, TimeUnit.MINUTES);
+				}, period, period, TimeUnit.SECONDS);
+	}
+
+	/**
+	 * Starts watching the directory of the properties file, returns whether
+	 * the watch service is available.
+	 */
+	private boolean watch() {
+		final WatchService watcher;
+		final Path dir;
+		try {
+			dir = file.getAbsoluteFile().getParentFile().toPath();
+			watcher = FileSystems.getDefault().newWatchService();
+			dir.register(watcher, StandardWatchEventKinds.ENTRY_CREATE,
+					StandardWatchEventKinds.ENTRY_MODIFY);
+		} catch (IOException e) {
+			LOG.info("Can't watch the configuration properties, polling: {}",
+					e.getMessage());
+			return false;
+		} catch (UnsupportedOperationException e) {
+			LOG.info("Can't watch the configuration properties, polling: {}",
+					e.getMessage());
+			return false;
+		}
+		final Path name = file.toPath().getFileName();
+		Thread thread = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				try {
+					while (true) {
+						WatchKey key = watcher.take();
+						boolean changed = false;
+						for (WatchEvent<?> event : key.pollEvents()) {
+							changed |= event.kind() == StandardWatchEventKinds.OVERFLOW
+									|| name.equals(event.context());
+						}
+						if (changed) {
+							reload(true);
+						}
+						if (!key.reset()) {
+							LOG.warn("Stopped watching {}, polling", dir);
+							return;
+						}
+					}
+				} catch (InterruptedException e) {
+					// exiting
+				} catch (ClosedWatchServiceException e) {
+					// exiting
+				}
+			}
+		}, "epubcheck-config-watcher");
+		thread.setDaemon(true);
+		thread.start();
+		return true;
+	}
 
+	/**
+	 * Reloads the properties file if it was modified since the last load.
+	 */
+	protected void reload() {
+		reload(false);
 	}
 
-	protected synchronized void reload() {
-		if (file.lastModified() > lastUpdate) {
+	private void reload(boolean force) {
+		if (file == null) {
+			return;
+		}
+		synchronized (reloadLock) {
+			long modified = file.lastModified();
+			if (modified == 0L || !force && modified == lastModified) {
+				return;
+			}
 			InputStream is = null;
 			try {
 				is = new FileInputStream(file);
 				Properties properties = new Properties();
 				properties.load(is);
-				lastUpdate = System.currentTimeMillis();
+				lastModified = modified;
 				Map<String, String> newConfig = Maps.newHashMap(defaultConfig);
 				newConfig.putAll(Maps.fromProperties(properties));
-				config = ImmutableMap.copyOf(newConfig);
+				// items are only refreshed when the snapshot is replaced
+				if (!newConfig.equals(config)) {
+					config = ImmutableMap.copyOf(newConfig);
+					LOG.debug("Configuration properties reloaded");
+				}
 			} catch (IOException e) {
 				LOG.warn("Couldn't load configuration properties: {}",
 						e.getMessage());
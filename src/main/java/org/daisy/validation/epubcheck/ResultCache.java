@@ -0,0 +1,294 @@
+package org.daisy.validation.epubcheck;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.daisy.validation.epubcheck.Issue.Type;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.common.base.Charsets;
+import com.google.common.base.Preconditions;
+import com.google.common.base.Strings;
+import com.google.common.base.Supplier;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.RemovalListener;
+import com.google.common.cache.RemovalNotification;
+import com.google.common.cache.Weigher;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Lists;
+import com.google.common.hash.HashCode;
+import com.google.common.hash.Hashing;
+import com.google.common.io.Closeables;
+import com.google.common.io.Files;
+
+/**
+ * A cache of validation results, keyed by the content of the validated EPUB
+ * and the identity of the EPUBCheck jar.
+ * <p>
+ * Results are kept in memory, up to a maximum weight (the total number of
+ * issues), and least recently used results are evicted first. When a
+ * directory is configured, results are also stored on disk and survive
+ * restarts.
+ */
+public final class ResultCache {
+
+	private static final Logger LOG = LoggerFactory
+			.getLogger(ResultCache.class);
+
+	/** Changed with the file format, so that older files are ignored. */
+	private static final String SUFFIX = ".issues3";
+
+	/**
+	 * A snapshot of the cache counters.
+	 */
+	public static final class Stats {
+		/** The number of lookups answered from memory. */
+		public final long hitCount;
+		/** The number of lookups answered from disk. */
+		public final long diskHitCount;
+		/** The number of lookups which found no result. */
+		public final long missCount;
+		/** The number of results evicted from memory. */
+		public final long evictionCount;
+
+		private Stats(long hitCount, long diskHitCount, long missCount,
+				long evictionCount) {
+			this.hitCount = hitCount;
+			this.diskHitCount = diskHitCount;
+			this.missCount = missCount;
+			this.evictionCount = evictionCount;
+		}
+
+		@Override
+		public String toString() {
+			return "hits: " + hitCount + ", disk hits: " + diskHitCount
+					+ ", misses: " + missCount + ", evictions: "
+					+ evictionCount;
+		}
+	}
+
+	private final Cache<String, List<Issue>> memory;
+	private final Cache<String, HashCode> digests = CacheBuilder.newBuilder()
+			.maximumSize(1000).build();
+	private final Supplier<String> directory;
+	private final AtomicLong hits = new AtomicLong();
+	private final AtomicLong diskHits = new AtomicLong();
+	private final AtomicLong misses = new AtomicLong();
+	private final AtomicLong evictions = new AtomicLong();
+
+	/**
+	 * Creates a new cache.
+	 *
+	 * @param maxWeight
+	 *            the maximum number of issues kept in memory
+	 * @param directory
+	 *            the directory of the disk tier, or an empty string to only
+	 *            cache in memory
+	 */
+	public ResultCache(long maxWeight, Supplier<String> directory) {
+		Preconditions.checkArgument(maxWeight > 0,
+				"Cache weight must be positive");
+		this.directory = Preconditions.checkNotNull(directory);
+		this.memory = CacheBuilder.newBuilder().maximumWeight(maxWeight)
+				.weigher(new Weigher<String, List<Issue>>() {
+					@Override
+					public int weigh(String key, List<Issue> issues) {
+						return issues.size() + 1;
+					}
+				}).removalListener(new RemovalListener<String, List<Issue>>() {
+					@Override
+					public void onRemoval(
+							RemovalNotification<String, List<Issue>> notification) {
+						if (notification.wasEvicted()) {
+							evictions.incrementAndGet();
+						}
+					}
+				}).build();
+	}
+
+	/**
+	 * Computes the cache key of the given EPUB validated with the given
+	 * EPUBCheck jar. The content digest of an EPUB is remembered as long as
+	 * its path, size and modification time don't change.
+	 */
+	public String key(File epub, File jar) throws IOException {
+		return key(epub, jar, "");
+	}
+
+	/**
+	 * Computes the cache key of the given EPUB validated with the given
+	 * EPUBCheck jar and the given options, such as the engine and the report
+	 * mode, which change the issues returned for the same EPUB.
+	 */
+	public String key(File epub, File jar, String options) throws IOException {
+		String id = epub.getCanonicalPath() + '|' + epub.length() + '|'
+				+ epub.lastModified();
+		HashCode digest = digests.getIfPresent(id);
+		if (digest == null) {
+			digest = Files.hash(epub, Hashing.sha1());
+			digests.put(id, digest);
+		}
+		return Hashing.sha1().newHasher().putBytes(digest.asBytes())
+				.putString(jar.getAbsolutePath()).putLong(jar.length())
+				.putLong(jar.lastModified()).putString(options).hash()
+				.toString();
+	}
+
+	/**
+	 * Returns the cached result for the given key, or <code>null</code>.
+	 */
+	public List<Issue> get(String key) {
+		List<Issue> issues = memory.getIfPresent(key);
+		if (issues != null) {
+			hits.incrementAndGet();
+			return issues;
+		}
+		File file = file(key);
+		if (file != null && file.isFile()) {
+			try {
+				issues = read(file);
+				memory.put(key, issues);
+				diskHits.incrementAndGet();
+				return issues;
+			} catch (IOException e) {
+				LOG.warn("Couldn't read cached result {}: {}", file,
+						e.getMessage());
+				file.delete();
+			}
+		}
+		misses.incrementAndGet();
+		return null;
+	}
+
+	/**
+	 * Caches the given result. An {@link IssueList} is cached as is, not
+	 * copied (which would create all its issues), and must not be modified
+	 * afterwards.
+	 */
+	public void put(String key, List<Issue> issues) {
+		issues = issues instanceof IssueList ? Collections
+				.unmodifiableList(issues) : ImmutableList.copyOf(issues);
+		memory.put(key, issues);
+		File file = file(key);
+		if (file != null) {
+			try {
+				write(issues, file);
+			} catch (IOException e) {
+				LOG.warn("Couldn't store cached result {}: {}", file,
+						e.getMessage());
+			}
+		}
+	}
+
+	/**
+	 * Returns a snapshot of the cache counters.
+	 */
+	public Stats stats() {
+		return new Stats(hits.get(), diskHits.get(), misses.get(),
+				evictions.get());
+	}
+
+	private File file(String key) {
+		String dir = directory.get();
+		return Strings.isNullOrEmpty(dir) ? null : new File(dir, key + SUFFIX);
+	}
+
+	private static List<Issue> read(File file) throws IOException {
+		DataInputStream in = new DataInputStream(new BufferedInputStream(
+				new FileInputStream(file)));
+		try {
+			int size = in.readInt();
+			List<Issue> issues = Lists.newArrayListWithCapacity(size);
+			for (int i = 0; i < size; i++) {
+				Type type = Type.valueOf(readString(in));
+				String id = in.readBoolean() ? readString(in) : null;
+				String path = in.readBoolean() ? readString(in) : null;
+				int lineNo = in.readInt();
+				int colNo = in.readInt();
+				issues.add(new Issue(type, id, path, lineNo, colNo,
+						readString(in)));
+			}
+			return Collections.unmodifiableList(issues);
+		} catch (IllegalArgumentException e) {
+			throw new IOException("Corrupted cache file");
+		} finally {
+			Closeables.closeQuietly(in);
+		}
+	}
+
+	/**
+	 * Writes the given issues to a temporary file next to the given file,
+	 * which is then renamed, so that concurrent writers of the same key
+	 * (threads or JVMs) never leave a partial file.
+	 */
+	private static void write(List<Issue> issues, File file)
+			throws IOException {
+		Files.createParentDirs(file);
+		File tmp = File.createTempFile(file.getName(), ".tmp",
+				file.getParentFile());
+		boolean written = false;
+		DataOutputStream out = new DataOutputStream(new BufferedOutputStream(
+				new FileOutputStream(tmp)));
+		try {
+			out.writeInt(issues.size());
+			for (Issue issue : issues) {
+				writeString(out, issue.type.name());
+				out.writeBoolean(issue.id != null);
+				if (issue.id != null) {
+					writeString(out, issue.id);
+				}
+				out.writeBoolean(issue.file != null);
+				if (issue.file != null) {
+					writeString(out, issue.file);
+				}
+				out.writeInt(issue.lineNo);
+				out.writeInt(issue.colNo);
+				writeString(out, issue.txt);
+			}
+			out.close();
+			written = true;
+		} finally {
+			if (!written) {
+				Closeables.closeQuietly(out);
+				tmp.delete();
+			}
+		}
+		// renaming onto an existing file fails on Windows
+		if (!tmp.renameTo(file) && !(file.delete() && tmp.renameTo(file))) {
+			tmp.delete();
+			throw new IOException("Couldn't rename " + tmp);
+		}
+	}
+
+	/**
+	 * Writes the given string as its length and its UTF-8 bytes, since
+	 * {@link DataOutputStream#writeUTF(String)} is limited to 64 KB.
+	 */
+	private static void writeString(DataOutputStream out, String string)
+			throws IOException {
+		byte[] bytes = string.getBytes(Charsets.UTF_8);
+		out.writeInt(bytes.length);
+		out.write(bytes);
+	}
+
+	private static String readString(DataInputStream in) throws IOException {
+		int length = in.readInt();
+		if (length < 0) {
+			throw new IOException("Corrupted cache file");
+		}
+		byte[] bytes = new byte[length];
+		in.readFully(bytes);
+		return new String(bytes, Charsets.UTF_8);
+	}
+}
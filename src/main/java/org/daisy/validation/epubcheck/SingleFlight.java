@@ -0,0 +1,143 @@
+package org.daisy.validation.epubcheck;
+
+import java.util.Map;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+
+import com.google.common.base.Preconditions;
+import com.google.common.base.Supplier;
+import com.google.common.collect.Maps;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.MoreExecutors;
+import com.google.common.util.concurrent.SettableFuture;
+import com.google.common.util.concurrent.Uninterruptibles;
+
+/**
+ * Coalesces concurrent computations of the same key: while a computation is
+ * in flight, later callers with the same key wait for its result instead of
+ * starting another one.
+ * <p>
+ * Each caller gets its own future, which it can cancel without affecting the
+ * other callers. The shared computation is cancelled (with interruption) only
+ * when all its callers have cancelled their futures.
+ */
+final class SingleFlight<K, V> {
+
+	private final Map<K, Flight> flights = Maps.newHashMap();
+
+	/**
+	 * Returns the future result of the computation of the given key, started
+	 * with the given supplier unless one is already in flight.
+	 */
+	ListenableFuture<V> join(K key, Supplier<ListenableFuture<V>> computation) {
+		Preconditions.checkNotNull(key);
+		Flight flight;
+		boolean started = false;
+		synchronized (this) {
+			flight = flights.get(key);
+			if (flight == null) {
+				flight = new Flight(key);
+				flights.put(key, flight);
+				started = true;
+			}
+			flight.waiters++;
+		}
+		if (started) {
+			try {
+				flight.start(computation.get());
+			} catch (RuntimeException e) {
+				flight.start(SingleFlight.<V> immediateFailure(e));
+			}
+		}
+		return flight.newWaiter();
+	}
+
+	/**
+	 * Returns the number of computations in flight.
+	 */
+	synchronized int size() {
+		return flights.size();
+	}
+
+	private static <V> ListenableFuture<V> immediateFailure(Throwable e) {
+		SettableFuture<V> failed = SettableFuture.create();
+		failed.setException(e);
+		return failed;
+	}
+
+	private final class Flight {
+
+		private final K key;
+		/** Set once, by the caller which started the computation. */
+		private final SettableFuture<ListenableFuture<V>> shared = SettableFuture
+				.create();
+		/**
+		 * The number of callers which haven't cancelled, guarded by the outer
+		 * instance.
+		 */
+		private int waiters = 0;
+
+		private Flight(K key) {
+			this.key = key;
+		}
+
+		private void start(final ListenableFuture<V> future) {
+			future.addListener(new Runnable() {
+				@Override
+				public void run() {
+					remove();
+				}
+			}, MoreExecutors.sameThreadExecutor());
+			shared.set(future);
+		}
+
+		private ListenableFuture<V> newWaiter() {
+			// never fails, and is set right after the flight is created
+			final ListenableFuture<V> future = Futures.getUnchecked(shared);
+			final SettableFuture<V> waiter = SettableFuture.create();
+			future.addListener(new Runnable() {
+				@Override
+				public void run() {
+					try {
+						waiter.set(Uninterruptibles.getUninterruptibly(future));
+					} catch (ExecutionException e) {
+						waiter.setException(e.getCause());
+					} catch (CancellationException e) {
+						waiter.cancel(false);
+					}
+				}
+			}, MoreExecutors.sameThreadExecutor());
+			waiter.addListener(new Runnable() {
+				@Override
+				public void run() {
+					if (waiter.isCancelled() && !future.isDone() && leave()) {
+						future.cancel(true);
+					}
+				}
+			}, MoreExecutors.sameThreadExecutor());
+			return waiter;
+		}
+
+		/**
+		 * Removes a caller, returns whether it was the last one.
+		 */
+		private boolean leave() {
+			synchronized (SingleFlight.this) {
+				if (--waiters > 0) {
+					return false;
+				}
+				remove();
+				return true;
+			}
+		}
+
+		private void remove() {
+			synchronized (SingleFlight.this) {
+				if (flights.get(key) == this) {
+					flights.remove(key);
+				}
+			}
+		}
+	}
+}
@@ -2,7 +2,7 @@ package org.daisy.validation.epubcheck;
 
 import java.io.File;
 import java.io.IOException;
-import java.util.Collections;
+import java.io.Reader;
 import java.util.List;
 import java.util.regex.MatchResult;
 import java.util.regex.Matcher;
@@ -12,12 +12,17 @@ import org.daisy.validation.epubcheck.Issue.Type;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import com.google.common.base.Charsets;
+import com.google.common.base.Preconditions;
 import com.google.common.base.Supplier;
 import com.google.common.base.Suppliers;
+import com.google.common.collect.Iterables;
 import com.google.common.collect.Lists;
+import com.google.common.io.Closeables;
+import com.google.common.io.Files;
 import com.google.common.io.LineProcessor;
 
-public class StatefulParser implements LineProcessor<List<Issue>> {
+public class StatefulParser implements CharLineProcessor<List<Issue>> {
 
 	private static final Logger LOG = LoggerFactory
 			.getLogger(StatefulParser.class);
@@ -28,70 +33,279 @@ public class StatefulParser implements LineProcessor<List<Issue>> {
 
 	private final boolean quiet;
 	private StatefulParser.State state = State.PROCESS;
-	private final Supplier<List<String>> entries;
-	private final List<Issue> issues = Lists.newLinkedList();
-	private final List<? extends LineProcessor<Issue>> processors = Lists
-			.newArrayList(new IssueProcessor(),
-					new EpubcheckVersionProcessor(),
-					new EpubVersionProcessor(), new IgnoreProcessor(),
-					new ClassNotFoundProcessor(), new FileNotFoundProcessor(),
-					new ExceptionProcessor(), new CatchAllProcessor());
-
+	private final Supplier<EpubEntryIndex> entries;
+	private final IssueList issues;
+	private final IssueListener listener;
+	private final FailFastPolicy failFast;
+	private int errorCount = 0;
+	private boolean truncated = false;
+	private final boolean regexOnly;
+	private final LineScanner scanner = new LineScanner();
+	private final List<GenericIssueProcessor> fallbackProcessors = Lists
+			.<GenericIssueProcessor> newArrayList(new ClassNotFoundProcessor(),
+					new FileNotFoundProcessor(), new ExceptionProcessor(),
+					new CatchAllProcessor());
+	private final List<GenericIssueProcessor> processors = Lists
+			.newArrayList(Iterables.concat(Lists.newArrayList(
+					new IssueProcessor(), new EpubcheckVersionProcessor(),
+					new EpubVersionProcessor(), new IgnoreProcessor()),
+					fallbackProcessors));
+
+	/**
+	 * Creates a parser which collects the issues, to be returned by
+	 * {@link #getResult()}.
+	 */
 	public StatefulParser(final File epub) {
-		this.quiet = epub == null;
-		this.entries = Suppliers.memoize(new Supplier<List<String>>() {
+		this(epub, null);
+	}
+
+	/**
+	 * Creates a parser which passes the issues to the given listener as soon
+	 * as they are recognized. Issues are not collected (i.e.
+	 * {@link #getResult()} returns an empty list) unless the listener is
+	 * <code>null</code>.
+	 */
+	public StatefulParser(final File epub, IssueListener listener) {
+		this(epub, listener, false);
+	}
+
+	/**
+	 * Creates a parser which optionally only uses the regex chain, to check
+	 * that the single-pass scanners give the same results.
+	 */
+	StatefulParser(final File epub, IssueListener listener, boolean regexOnly) {
+		this(epub, listener, Suppliers.memoize(new Supplier<EpubEntryIndex>() {
 		    @Override
-		    public List<String> get() {
-		        return Utils.getEntries(epub);
+		    public EpubEntryIndex get() {
+		        return EpubEntryIndex.read(epub);
 		    }
-		});
+		}), regexOnly, 0, FailFastPolicy.NONE);
+	}
+
+	/**
+	 * Creates a parser which normalizes the file names with the given entry
+	 * index, e.g. when the index was already read by the caller.
+	 *
+	 * @param memoryCapacity
+	 *            the number of collected issues kept in memory, see
+	 *            {@link IssueList#IssueList(int)}
+	 * @param failFast
+	 *            when to stop the validation early, see {@link #isTruncated()}
+	 */
+	StatefulParser(File epub, IssueListener listener,
+			Supplier<EpubEntryIndex> entries, int memoryCapacity,
+			FailFastPolicy failFast) {
+		this(epub, listener, entries, false, memoryCapacity, failFast);
+	}
+
+	private StatefulParser(File epub, final IssueListener listener,
+			Supplier<EpubEntryIndex> entries, boolean regexOnly,
+			int memoryCapacity, FailFastPolicy failFast) {
+		this.regexOnly = regexOnly;
+		this.issues = new IssueList(memoryCapacity);
+		this.failFast = Preconditions.checkNotNull(failFast);
+		final IssueListener target = listener != null ? listener
+				: new IssueListener() {
+					@Override
+					public void onIssue(Issue issue) {
+						issues.add(issue);
+					}
+				};
+		this.listener = !failFast.isEnabled() ? target : new IssueListener() {
+			@Override
+			public void onIssue(Issue issue) {
+				failFast(target, issue);
+			}
+		};
+		this.quiet = epub == null;
+		this.entries = entries;
+	}
+
+	/**
+	 * Passes the issue to the target listener unless the validation was
+	 * stopped, and stops it when the fail-fast policy triggers.
+	 */
+	private void failFast(IssueListener target, Issue issue) {
+		if (truncated) {
+			return;
+		}
+		target.onIssue(issue);
+		if (FailFastPolicy.isError(issue)) {
+			errorCount++;
+		}
+		String reason = failFast.stopReason(issue, errorCount);
+		if (reason != null) {
+			truncated = true;
+			target.onIssue(new Issue(Type.TRUNCATED, reason));
+		}
 	}
-	
+
+	/**
+	 * Returns whether the fail-fast policy triggered. The issues reported after
+	 * that are dropped, and {@link #processLine(String)} returns
+	 * <code>false</code> so that the EPUBCheck output is no longer read. The
+	 * last issue of the result is then of type {@link Type#TRUNCATED}.
+	 */
+	boolean isTruncated() {
+		return truncated;
+	}
+
+	/**
+	 * Returns the collected issues, as a read-only {@link IssueList}. The
+	 * parser must not be fed afterwards.
+	 */
 	@Override
 	public List<Issue> getResult() {
-		return Collections.unmodifiableList(issues);
+		issues.seal();
+		return issues;
 	}
 
+	/**
+	 * Reports an issue which was not parsed from the EPUBCheck output.
+	 */
+	void report(Issue issue) {
+		listener.onIssue(issue);
+	}
+
+	/**
+	 * Processes a JSON report of EPUBCheck, written with its <code>-j</code>
+	 * option, see {@link JsonReport}. The issues are reported after the issues
+	 * of the output, in the order of the text output: the EPUB version first,
+	 * then the messages.
+	 *
+	 * @throws IOException
+	 *             if the report can't be read or is malformed
+	 */
+	void processReport(File report) throws IOException {
+		if (truncated) {
+			return;
+		}
+		// the version comes last in the report, it is read in a first pass
+		Reader reader = Files.newReader(report, Charsets.UTF_8);
+		try {
+			String version = JsonReport.readVersion(reader);
+			if (version != null) {
+				listener.onIssue(new Issue(Type.EPUB_VERSION, null, version));
+			}
+		} finally {
+			Closeables.closeQuietly(reader);
+		}
+		reader = Files.newReader(report, Charsets.UTF_8);
+		try {
+			JsonReport.readIssues(reader, listener);
+		} finally {
+			Closeables.closeQuietly(reader);
+		}
+	}
+
+	/**
+	 * Processes a line of the EPUBCheck output.
+	 * <p>
+	 * Lines are expected to be processed in order by a single thread, a
+	 * parser is not thread-safe.
+	 */
+	@Override
+	public boolean processLine(String line) {
+		return processChars(line);
+	}
+
+	/**
+	 * Processes a line of the EPUBCheck output, see
+	 * {@link #processLine(String)}. Strings are only created for the lines
+	 * which become issues, and for the rare lines left to the regex chain.
+	 */
 	@Override
-	public synchronized boolean processLine(String line) {
+	public boolean processChars(CharSequence line) {
+		boolean plain = !regexOnly && LineScanner.isPlain(line);
 		switch (state) {
 		case PROCESS:
-			doProcessLine(line);
+			doProcessLine(line, plain);
 			break;
 		case IGNORE_STACK_TRACE:
-			if (!Patterns.INDENTED.matcher(line).matches()
-					&& !Patterns.CAUSED_BY.matcher(line).matches()) {
+			if (!isStackTrace(line, plain)) {
 				state = State.PROCESS;
-				doProcessLine(line);
+				doProcessLine(line, plain);
 			}
 			break;
 		}
-		return true;
+		return !truncated;
+	}
+
+	private static boolean isStackTrace(CharSequence line, boolean plain) {
+		if (plain) {
+			return LineScanner.isIndented(line) || LineScanner.isCausedBy(line);
+		}
+		return Patterns.INDENTED.matcher(line).matches()
+				|| Patterns.CAUSED_BY.matcher(line).matches();
 	}
 
-	private void doProcessLine(String line) {
-		for (LineProcessor<Issue> processor : processors) {
+	/**
+	 * Classifies the line in a single pass with the {@link LineScanner} when
+	 * possible, and falls back to the regex chain for the remaining lines.
+	 */
+	private void doProcessLine(CharSequence line, boolean plain) {
+		if (!plain) {
+			process(processors, line.toString(), false);
+			return;
+		}
+		if (scanner.scanIssue(line)) {
+			listener.onIssue(new Issue(scanner.type, Utils.normalizeFilename(
+					entries.get(), LineScanner.substring(line,
+							scanner.fileStart, scanner.fileEnd)), toInt(line,
+					scanner.lineStart, scanner.lineEnd), toInt(line,
+					scanner.colStart, scanner.colEnd), LineScanner.substring(
+					line, scanner.messageStart, line.length())));
+			return;
+		}
+		String version = LineScanner.epubcheckVersion(line);
+		if (version != null) {
+			listener.onIssue(new Issue(Type.EPUBCHECK_VERSION, null, version));
+			return;
+		}
+		version = LineScanner.epubVersion(line);
+		if (version != null) {
+			listener.onIssue(new Issue(Type.EPUB_VERSION, null, version));
+			return;
+		}
+		if (LineScanner.isIrrelevant(line)) {
+			return;
+		}
+		process(fallbackProcessors, line.toString(), true);
+	}
+
+	private void process(List<GenericIssueProcessor> processors, String line,
+			boolean useHints) {
+		for (GenericIssueProcessor processor : processors) {
+			if (useHints && !processor.mayMatch(line)) {
+				continue;
+			}
 			try {
 				if (processor.processLine(line)) {
 					if (processor.getResult() != null) {
-						issues.add(processor.getResult());
+						listener.onIssue(processor.getResult());
 					}
 					return;
 				}
 			} catch (IOException e) {
 				LOG.warn("Unexpected IOException: {}", e.getMessage());
-				issues.add(new Issue(Type.INTERNAL_ERROR, e.getMessage()));
+				listener.onIssue(new Issue(Type.INTERNAL_ERROR, e.getMessage()));
 			}
 		}
 		throw new RuntimeException("No line processor caught this line:" + line);
 	}
 
+	private static int toInt(CharSequence line, int start, int end) {
+		return start < 0 ? -1 : Utils.toInt(LineScanner.substring(line, start,
+				end));
+	}
+
 	private class ClassNotFoundProcessor extends
 			StatefulParser.GenericIssueProcessor {
 
 		public ClassNotFoundProcessor() {
-			super(Patterns.CLASS_NOT_FOUND, new Issue(Type.INTERNAL_ERROR,
-					"Classpath configuration error"));
+			super(Patterns.CLASS_NOT_FOUND, "NoClassDefFoundError: ",
+					new Issue(Type.INTERNAL_ERROR,
+							"Classpath configuration error"));
 		}
 
 		@Override
@@ -104,7 +318,7 @@ public class StatefulParser implements LineProcessor<List<Issue>> {
 			StatefulParser.GenericIssueProcessor {
 
 		public FileNotFoundProcessor() {
-			super(Patterns.FILE_NOT_FOUND);
+			super(Patterns.FILE_NOT_FOUND, "File not found: '", null);
 		}
 
 		@Override
@@ -119,7 +333,7 @@ public class StatefulParser implements LineProcessor<List<Issue>> {
 	private class ExceptionProcessor extends StatefulParser.GenericIssueProcessor {
 
 		public ExceptionProcessor() {
-			super(Patterns.EXCEPTION);
+			super(Patterns.EXCEPTION, "Exception: ", null);
 		}
 
 		@Override
@@ -202,16 +416,31 @@ public class StatefulParser implements LineProcessor<List<Issue>> {
 
 		protected Issue issue;
 		private final Pattern pattern;
+		private final String hint;
 
 		public GenericIssueProcessor(Pattern pattern) {
-			this(pattern, null);
+			this(pattern, null, null);
 		}
 
-		public GenericIssueProcessor(Pattern pattern, Issue issue) {
+		/**
+		 * @param hint
+		 *            a literal string contained in every matching line, or
+		 *            <code>null</code>
+		 */
+		public GenericIssueProcessor(Pattern pattern, String hint, Issue issue) {
 			this.pattern = pattern;
+			this.hint = hint;
 			this.issue = issue;
 		}
 
+		/**
+		 * Returns <code>false</code> if the line can't match, without running
+		 * the regex.
+		 */
+		public boolean mayMatch(String line) {
+			return hint == null || line.contains(hint);
+		}
+
 		@Override
 		public Issue getResult() {
 			return issue;
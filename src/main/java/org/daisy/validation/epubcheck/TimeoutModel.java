@@ -0,0 +1,179 @@
+package org.daisy.validation.epubcheck;
+
+import java.util.Arrays;
+
+import com.google.common.base.Preconditions;
+
+/**
+ * A running model of the validation time as a function of the EPUB size and
+ * number of entries, used to compute adaptive timeouts.
+ * <p>
+ * The time is predicted by a linear least squares fit over all the observed
+ * validations. The model also keeps the ratios of the observed to predicted
+ * times of the recent validations (predicted before being observed), so that a
+ * deadline can be set to a percentile of these ratios, times a safety
+ * multiplier. The model doesn't predict anything until it has observed
+ * {@value #MIN_SAMPLES} validations.
+ */
+public final class TimeoutModel {
+
+	/** The number of validations observed before predicting. */
+	public static final int MIN_SAMPLES = 20;
+
+	private static final int FEATURES = 3;
+	private static final int RATIO_WINDOW = 500;
+	private static final double RIDGE = 1e-6;
+	private static final double BYTES_PER_UNIT = 1024 * 1024;
+	private static final double ENTRIES_PER_UNIT = 100;
+
+	private final double[][] xtx = new double[FEATURES][FEATURES];
+	private final double[] xty = new double[FEATURES];
+	private double[] coefficients = null;
+	private double minSeconds = Double.MAX_VALUE;
+	private int sampleCount = 0;
+	private final double[] ratios = new double[RATIO_WINDOW];
+	private int ratioCount = 0;
+	private int nextRatio = 0;
+
+	/**
+	 * Records the time of a completed validation.
+	 *
+	 * @param size
+	 *            the size of the EPUB, in bytes
+	 * @param entries
+	 *            the number of entries of the EPUB
+	 * @param nanos
+	 *            the validation time
+	 */
+	public synchronized void observe(long size, int entries, long nanos) {
+		double seconds = nanos / 1e9;
+		double[] x = features(size, entries);
+		if (coefficients != null) {
+			ratios[nextRatio] = seconds / predictSeconds(x);
+			nextRatio = (nextRatio + 1) % RATIO_WINDOW;
+			ratioCount = Math.min(ratioCount + 1, RATIO_WINDOW);
+		}
+		for (int i = 0; i < FEATURES; i++) {
+			for (int j = 0; j < FEATURES; j++) {
+				xtx[i][j] += x[i] * x[j];
+			}
+			xty[i] += x[i] * seconds;
+		}
+		minSeconds = Math.min(minSeconds, seconds);
+		sampleCount++;
+		coefficients = sampleCount >= MIN_SAMPLES ? solve() : null;
+	}
+
+	/**
+	 * Returns the predicted validation time of an EPUB, in nanoseconds, or -1
+	 * if the model has not observed enough validations yet.
+	 */
+	public synchronized long predict(long size, int entries) {
+		if (coefficients == null) {
+			return -1;
+		}
+		return (long) (predictSeconds(features(size, entries)) * 1e9);
+	}
+
+	/**
+	 * Returns the deadline for the given predicted time: the prediction times
+	 * the given percentile of the observed to predicted ratios (at least 1),
+	 * times the given multiplier.
+	 *
+	 * @param percentile
+	 *            the percentile of the ratios, between 0 and 100
+	 */
+	public synchronized long deadline(long predictedNanos, double percentile,
+			double multiplier) {
+		Preconditions.checkArgument(percentile >= 0 && percentile <= 100,
+				"Percentile must be between 0 and 100");
+		return (long) (predictedNanos * Math.max(1, ratio(percentile))
+				* multiplier);
+	}
+
+	/**
+	 * Returns the given percentile of the recent observed to predicted
+	 * ratios, or 1 if there is none.
+	 */
+	private double ratio(double percentile) {
+		if (ratioCount == 0) {
+			return 1;
+		}
+		double[] sorted = Arrays.copyOf(ratios, ratioCount);
+		Arrays.sort(sorted);
+		return sorted[Math.max(0,
+				(int) Math.ceil(percentile / 100 * ratioCount) - 1)];
+	}
+
+	/**
+	 * Returns the number of observed validations.
+	 */
+	public synchronized int sampleCount() {
+		return sampleCount;
+	}
+
+	private static double[] features(long size, int entries) {
+		return new double[] { 1, size / BYTES_PER_UNIT,
+				entries / ENTRIES_PER_UNIT };
+	}
+
+	private double predictSeconds(double[] x) {
+		double seconds = 0;
+		for (int i = 0; i < FEATURES; i++) {
+			seconds += coefficients[i] * x[i];
+		}
+		// the fit can be off for EPUBs unlike the observed ones
+		return Math.max(seconds, minSeconds);
+	}
+
+	/**
+	 * Solves the (slightly regularized) normal equations, by Gaussian
+	 * elimination with partial pivoting.
+	 */
+	private double[] solve() {
+		double[][] a = new double[FEATURES][FEATURES + 1];
+		for (int i = 0; i < FEATURES; i++) {
+			for (int j = 0; j < FEATURES; j++) {
+				a[i][j] = xtx[i][j] + (i == j ? RIDGE * sampleCount : 0);
+			}
+			a[i][FEATURES] = xty[i];
+		}
+		for (int col = 0; col < FEATURES; col++) {
+			int pivot = col;
+			for (int row = col + 1; row < FEATURES; row++) {
+				if (Math.abs(a[row][col]) > Math.abs(a[pivot][col])) {
+					pivot = row;
+				}
+			}
+			double[] swap = a[col];
+			a[col] = a[pivot];
+			a[pivot] = swap;
+			for (int row = col + 1; row < FEATURES; row++) {
+				double factor = a[row][col] / a[col][col];
+				for (int k = col; k <= FEATURES; k++) {
+					a[row][k] -= factor * a[col][k];
+				}
+			}
+		}
+		double[] solution = new double[FEATURES];
+		for (int row = FEATURES - 1; row >= 0; row--) {
+			double sum = a[row][FEATURES];
+			for (int k = row + 1; k < FEATURES; k++) {
+				sum -= a[row][k] * solution[k];
+			}
+			solution[row] = sum / a[row][row];
+		}
+		return solution;
+	}
+
+	@Override
+	public synchronized String toString() {
+		if (coefficients == null) {
+			return String.format("%d samples, not predicting", sampleCount);
+		}
+		return String
+				.format("%d samples, time = %.3f s + %.3f s/MB + %.3f s/100 entries, median observed/predicted %.2f",
+						sampleCount, coefficients[0], coefficients[1],
+						coefficients[2], ratio(50));
+	}
+}
@@ -0,0 +1,148 @@
+package org.daisy.validation.epubcheck;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.CharsetDecoder;
+import java.nio.charset.CoderResult;
+import java.nio.charset.CodingErrorAction;
+
+import com.google.common.base.Charsets;
+import com.google.common.base.Preconditions;
+
+/**
+ * Reads the lines of a UTF-8 stream. Lines are split at byte level (at
+ * <code>\n</code>, <code>\r</code> or <code>\r\n</code>, like
+ * {@link java.io.BufferedReader#readLine()}) and decoded into a reused
+ * character buffer, so that reading a line allocates nothing in the common
+ * case. Malformed input is replaced, not reported.
+ * <p>
+ * The stream is read directly rather than through an interruptible channel,
+ * which would be closed when the reading thread is interrupted: a blocked
+ * read ends when the {@link DeadlineService} destroys the process instead.
+ * Instances are not thread-safe.
+ */
+final class Utf8LineReader {
+
+	private static final int BUFFER_SIZE = 64 * 1024;
+
+	private final InputStream is;
+	/** The bytes read and not yet consumed, between position and limit. */
+	private final ByteBuffer buffer = ByteBuffer.allocate(BUFFER_SIZE);
+	/** The start of a line spanning several reads. */
+	private ByteBuffer pending = ByteBuffer.allocate(256);
+	private CharBuffer chars = CharBuffer.allocate(256);
+	private final CharsetDecoder decoder = Charsets.UTF_8.newDecoder()
+			.onMalformedInput(CodingErrorAction.REPLACE)
+			.onUnmappableCharacter(CodingErrorAction.REPLACE);
+	/** Whether the last line ended with <code>\r</code>. */
+	private boolean skipLF = false;
+
+	Utf8LineReader(InputStream is) {
+		this.is = Preconditions.checkNotNull(is);
+		buffer.flip();
+	}
+
+	/**
+	 * Returns the next line, without its terminator, or <code>null</code> at
+	 * the end of the stream. The returned sequence is only valid until the
+	 * next call.
+	 */
+	CharSequence readLine() throws IOException {
+		pending.clear();
+		while (true) {
+			if (!buffer.hasRemaining() && !fill()) {
+				if (pending.position() == 0) {
+					return null;
+				}
+				pending.flip();
+				return decode(pending);
+			}
+			byte[] array = buffer.array();
+			int start = buffer.position();
+			int limit = buffer.limit();
+			if (skipLF) {
+				skipLF = false;
+				if (array[start] == '\n') {
+					buffer.position(++start);
+					continue;
+				}
+			}
+			for (int i = start; i < limit; i++) {
+				byte b = array[i];
+				if (b == '\n' || b == '\r') {
+					skipLF = b == '\r';
+					CharSequence line;
+					if (pending.position() == 0) {
+						// the whole line is in the buffer
+						buffer.limit(i);
+						line = decode(buffer);
+						buffer.limit(limit);
+					} else {
+						append(array, start, i - start);
+						pending.flip();
+						line = decode(pending);
+					}
+					buffer.position(i + 1);
+					return line;
+				}
+			}
+			append(array, start, limit - start);
+			buffer.position(limit);
+		}
+	}
+
+	private boolean fill() throws IOException {
+		int read;
+		do {
+			read = is.read(buffer.array(), 0, buffer.capacity());
+		} while (read == 0);
+		buffer.position(0);
+		buffer.limit(Math.max(0, read));
+		return read > 0;
+	}
+
+	private void append(byte[] bytes, int offset, int length) {
+		if (pending.remaining() < length) {
+			ByteBuffer grown = ByteBuffer.allocate(Math.max(
+					pending.capacity() * 2, pending.position() + length));
+			pending.flip();
+			grown.put(pending);
+			pending = grown;
+		}
+		pending.put(bytes, offset, length);
+	}
+
+	private CharSequence decode(ByteBuffer bytes) throws IOException {
+		// UTF-8 decodes to at most one char per byte
+		if (chars.capacity() < bytes.remaining()) {
+			chars = CharBuffer.allocate(Math.max(chars.capacity() * 2,
+					bytes.remaining()));
+		}
+		chars.clear();
+		decoder.reset();
+		CoderResult result = decoder.decode(bytes, chars, true);
+		if (!result.isUnderflow()) {
+			result.throwException();
+		}
+		decoder.flush(chars);
+		chars.flip();
+		return chars;
+	}
+
+	/**
+	 * Returns whether the given sequence starts with the given prefix.
+	 */
+	static boolean startsWith(CharSequence line, String prefix) {
+		if (line.length() < prefix.length()) {
+			return false;
+		}
+		for (int i = 0; i < prefix.length(); i++) {
+			if (line.charAt(i) != prefix.charAt(i)) {
+				return false;
+			}
+		}
+		return true;
+	}
+}
@@ -1,12 +1,8 @@
 package org.daisy.validation.epubcheck;
 
-import java.io.BufferedInputStream;
 import java.io.File;
-import java.io.FileInputStream;
-import java.io.IOException;
+import java.util.Arrays;
 import java.util.List;
-import java.util.zip.ZipEntry;
-import java.util.zip.ZipInputStream;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -15,7 +11,6 @@ import com.google.common.base.Preconditions;
 import com.google.common.base.Predicate;
 import com.google.common.collect.Iterables;
 import com.google.common.collect.Lists;
-import com.google.common.io.Closeables;
 
 public final class Utils {
 
@@ -25,6 +20,22 @@ public final class Utils {
 		// static utils
 	}
 
+	/**
+	 * Returns the command running a Java program with the given arguments,
+	 * with the standard streams encoded as UTF-8 whatever the platform locale,
+	 * as the output is read by the {@link DataPump}. The properties cover the
+	 * Java versions before and after the standard stream encodings were
+	 * decoupled from <code>file.encoding</code>.
+	 */
+	static List<String> javaCommand(String... args) {
+		List<String> command = Lists.newArrayList("java",
+				"-Dfile.encoding=UTF-8", "-Dsun.stdout.encoding=UTF-8",
+				"-Dsun.stderr.encoding=UTF-8", "-Dstdout.encoding=UTF-8",
+				"-Dstderr.encoding=UTF-8");
+		command.addAll(Arrays.asList(args));
+		return command;
+	}
+
 	/**
 	 * Parses the string argument as a signed decimal integer, if possible.
 	 * Otherwise returns -1.
@@ -45,7 +56,8 @@ public final class Utils {
 	}
 
 	/**
-	 * Lists the entries of the given ZIP file.
+	 * Lists the entries of the given ZIP file. Only the ZIP central directory
+	 * is read, see {@link EpubEntryIndex}.
 	 * 
 	 * @param zip
 	 *            the ZIP file to get the entries for.
@@ -53,23 +65,7 @@ public final class Utils {
 	 *         problem occurred
 	 */
 	public static List<String> getEntries(File zip) {
-		List<String> entries = Lists.newLinkedList();
-		ZipInputStream zis = null;
-		if (zip != null) {
-			try {
-				zis = new ZipInputStream(new BufferedInputStream(
-						new FileInputStream(zip)));
-				ZipEntry entry;
-				while ((entry = zis.getNextEntry()) != null) {
-					entries.add(entry.getName());
-				}
-			} catch (IOException e) {
-				LOG.warn("Couldn't get ZIP entries", e);
-			} finally {
-				Closeables.closeQuietly(zis);
-			}
-		}
-		return entries;
+		return Lists.newLinkedList(EpubEntryIndex.read(zip).entries());
 	}
 
 	/**
@@ -95,4 +91,21 @@ public final class Utils {
 		}, filename);
 	}
 
+	/**
+	 * Normalizes the given file name against the given entry index, with the
+	 * same result as {@link #normalizeFilename(List, String)} but in time
+	 * proportional to the file name length.
+	 * 
+	 * @param entries
+	 *            file entries index
+	 * @param filename
+	 *            file name to check
+	 * @return normalized filename
+	 */
+	public static String normalizeFilename(final EpubEntryIndex entries,
+			final String filename) {
+		Preconditions.checkNotNull(entries);
+		return entries.normalize(filename);
+	}
+
 }
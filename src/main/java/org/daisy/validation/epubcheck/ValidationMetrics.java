@@ -0,0 +1,35 @@
+package org.daisy.validation.epubcheck;
+
+/**
+ * Receives the metrics of each validation, e.g. to export them to a monitoring
+ * system.
+ * <p>
+ * The implementation is looked up with {@link java.util.ServiceLoader}, i.e.
+ * declared in a
+ * <code>META-INF/services/org.daisy.validation.epubcheck.ValidationMetrics</code>
+ * resource, or set with
+ * {@link EpubCheckInvoker#setMetrics(ValidationMetrics)}. By default, metrics
+ * are not recorded.
+ * <p>
+ * Implementations are called from the threads running the validations, and
+ * must be thread-safe. Live gauges of the validation pool are available from
+ * {@link EpubCheckInvoker#gauges()}.
+ */
+public interface ValidationMetrics {
+
+	/**
+	 * Metrics which are not recorded.
+	 */
+	ValidationMetrics NOOP = new ValidationMetrics() {
+		@Override
+		public void record(ValidationRecord record) {
+		}
+	};
+
+	/**
+	 * Records the metrics of a validation, when it is done. Validations
+	 * answered from the result cache are not recorded.
+	 */
+	void record(ValidationRecord record);
+
+}
@@ -0,0 +1,76 @@
+package org.daisy.validation.epubcheck;
+
+import java.io.File;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import org.daisy.validation.epubcheck.Configuration.Engine;
+import org.daisy.validation.epubcheck.Issue.Type;
+
+/**
+ * The timing breakdown and counters of a validation. Durations are in
+ * nanoseconds, and are -1 when not applicable to the engine which ran the
+ * validation (e.g. there is no process start with a resident worker JVM).
+ */
+public final class ValidationRecord {
+
+	/** The validated EPUB, or <code>null</code> for the version probe. */
+	public final File epub;
+	/** The engine which ran the validation. */
+	public final Engine engine;
+	/** The time spent waiting for a thread of the validation pool. */
+	public final long queueWaitNanos;
+	/** The time spent starting the EPUBCheck process. */
+	public final long processStartNanos;
+	/** The time until the first line of output. */
+	public final long firstOutputNanos;
+	/** The time spent running EPUBCheck, including the parsing. */
+	public final long runNanos;
+	/** The time spent parsing the output. */
+	public final long parseNanos;
+	/** The number of parsed output lines. */
+	public final int lineCount;
+	/** The number of issues, by type (types without issues are absent). */
+	public final Map<Type, Integer> issueCounts;
+	/** Whether the validation timed out. */
+	public final boolean timedOut;
+	/** The predicted run time, with adaptive timeouts. */
+	public final long predictedNanos;
+	/** The applied timeout, with adaptive timeouts. */
+	public final long deadlineNanos;
+
+	ValidationRecord(File epub, Engine engine, long queueWaitNanos,
+			long processStartNanos, long firstOutputNanos, long runNanos,
+			long parseNanos, int lineCount, Map<Type, Integer> issueCounts,
+			boolean timedOut, long predictedNanos, long deadlineNanos) {
+		this.epub = epub;
+		this.engine = engine;
+		this.queueWaitNanos = queueWaitNanos;
+		this.processStartNanos = processStartNanos;
+		this.firstOutputNanos = firstOutputNanos;
+		this.runNanos = runNanos;
+		this.parseNanos = parseNanos;
+		this.lineCount = lineCount;
+		this.issueCounts = issueCounts;
+		this.timedOut = timedOut;
+		this.predictedNanos = predictedNanos;
+		this.deadlineNanos = deadlineNanos;
+	}
+
+	@Override
+	public String toString() {
+		return String
+				.format("%s [%s]: queued %d ms, started %d ms, first output %d ms, ran %d ms, parsed %d ms, %d lines, issues %s%s%s",
+						epub, engine, millis(queueWaitNanos),
+						millis(processStartNanos), millis(firstOutputNanos),
+						millis(runNanos), millis(parseNanos), lineCount,
+						issueCounts, timedOut ? " (timed out)" : "",
+						deadlineNanos < 0 ? "" : String.format(
+								", predicted %d ms, deadline %d ms",
+								millis(predictedNanos), millis(deadlineNanos)));
+	}
+
+	private static long millis(long nanos) {
+		return nanos < 0 ? -1 : TimeUnit.NANOSECONDS.toMillis(nanos);
+	}
+}
@@ -0,0 +1,234 @@
+package org.daisy.validation.epubcheck;
+
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.EnumMap;
+import java.util.List;
+import java.util.Map;
+
+import org.daisy.validation.epubcheck.Issue.Type;
+
+import com.google.common.base.Objects;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+
+/**
+ * The issue counts of a validation, by type and by message, with the first
+ * issues of each message as samples.
+ * <p>
+ * Issues are grouped by type and message ID when the ID is known (i.e. with
+ * JSON reports), and otherwise by type and message template: the message with
+ * its quoted parts and numbers replaced, so that e.g.
+ * <code>element "foo" not allowed here</code> and
+ * <code>element "bar" not allowed here</code> are counted together. The
+ * memory used doesn't depend on the number of issues: beyond
+ * {@value #MAX_GROUPS} groups, issues are only counted by type.
+ */
+public final class ValidationSummary {
+
+	/** The maximum number of groups of a summary. */
+	public static final int MAX_GROUPS = 1000;
+
+	private static final List<Type> SEVERITY_ORDER = ImmutableList.of(
+			Type.INTERNAL_ERROR, Type.TRUNCATED, Type.FATAL, Type.ERROR, Type.WARNING,
+			Type.USAGE, Type.INFO, Type.EPUB_VERSION, Type.EPUBCHECK_VERSION);
+
+	/**
+	 * The issues of a type with the same message ID or template.
+	 */
+	public static final class Group {
+		/** The issue type. */
+		public final Type type;
+		/** The message ID, or <code>null</code> when not known. */
+		public final String id;
+		/** The message template, or the first message when the ID is known. */
+		public final String template;
+		/** The number of issues. */
+		public final int count;
+		/** The first issues, in order. */
+		public final List<Issue> samples;
+
+		private Group(Type type, String id, String template, int count,
+				List<Issue> samples) {
+			this.type = type;
+			this.id = id;
+			this.template = template;
+			this.count = count;
+			this.samples = samples;
+		}
+
+		@Override
+		public String toString() {
+			return String.format("%s%s %s: %d", type, id != null ? "(" + id
+					+ ")" : "", template, count);
+		}
+	}
+
+	/** The number of issues by type (types without issues are absent). */
+	public final Map<Type, Integer> counts;
+	/** The groups, by decreasing severity then decreasing count. */
+	public final List<Group> groups;
+	/** The number of issues not counted in a group, beyond the group limit. */
+	public final int ungroupedCount;
+
+	private ValidationSummary(Map<Type, Integer> counts, List<Group> groups,
+			int ungroupedCount) {
+		this.counts = counts;
+		this.groups = groups;
+		this.ungroupedCount = ungroupedCount;
+	}
+
+	/**
+	 * Returns the number of issues of the given type.
+	 */
+	public int count(Type type) {
+		Integer count = counts.get(type);
+		return count == null ? 0 : count;
+	}
+
+	@Override
+	public String toString() {
+		return "counts " + counts + ", groups " + groups;
+	}
+
+	/**
+	 * Returns the template of the given message: the message with the quoted
+	 * parts replaced by <code>*</code> and the numbers by <code>#</code>.
+	 */
+	static String template(String message) {
+		StringBuilder template = null;
+		int length = message.length();
+		for (int i = 0; i < length; i++) {
+			char c = message.charAt(i);
+			// an apostrophe within a word is not a quote
+			char close = i == 0
+					|| !Character.isLetterOrDigit(message.charAt(i - 1)) ? closingQuote(c)
+					: 0;
+			int end = close != 0 ? message.indexOf(close, i + 1) : -1;
+			if (end > 0) {
+				template = copy(template, message, i);
+				template.append(c).append('*').append(close);
+				i = end;
+			} else if (c >= '0' && c <= '9') {
+				template = copy(template, message, i);
+				template.append('#');
+				while (i + 1 < length && message.charAt(i + 1) >= '0'
+						&& message.charAt(i + 1) <= '9') {
+					i++;
+				}
+			} else if (template != null) {
+				template.append(c);
+			}
+		}
+		return template == null ? message : template.toString();
+	}
+
+	private static char closingQuote(char c) {
+		switch (c) {
+		case '"':
+			return '"';
+		case '\'':
+			return '\'';
+		case '\u201C':
+			return '\u201D';
+		case '\u2018':
+			return '\u2019';
+		default:
+			return 0;
+		}
+	}
+
+	/**
+	 * Returns the given template, or a new one with the message up to the
+	 * given index.
+	 */
+	private static StringBuilder copy(StringBuilder template, String message,
+			int index) {
+		return template != null ? template : new StringBuilder(
+				message.length()).append(message, 0, index);
+	}
+
+	/**
+	 * Aggregates the issues passed as a listener.
+	 */
+	static final class Builder implements IssueListener {
+
+		private final int sampleCount;
+		private final int[] counts = new int[Type.values().length];
+		private final Map<List<Object>, MutableGroup> groups = Maps
+				.newLinkedHashMap();
+		private int ungroupedCount = 0;
+
+		/**
+		 * @param sampleCount
+		 *            the number of sample issues kept per group
+		 */
+		Builder(int sampleCount) {
+			this.sampleCount = Math.max(0, sampleCount);
+		}
+
+		@Override
+		public synchronized void onIssue(Issue issue) {
+			counts[issue.type.ordinal()]++;
+			String template = issue.id != null ? null : template(issue.txt);
+			List<Object> key = ImmutableList.<Object> of(issue.type,
+					Objects.firstNonNull(issue.id, ""),
+					Objects.firstNonNull(template, ""));
+			MutableGroup group = groups.get(key);
+			if (group == null) {
+				if (groups.size() == MAX_GROUPS) {
+					ungroupedCount++;
+					return;
+				}
+				group = new MutableGroup(issue, template != null ? template
+						: issue.txt);
+				groups.put(key, group);
+			}
+			group.count++;
+			if (group.samples.size() < sampleCount) {
+				group.samples.add(issue);
+			}
+		}
+
+		synchronized ValidationSummary build() {
+			Map<Type, Integer> typeCounts = new EnumMap<Type, Integer>(
+					Type.class);
+			for (Type type : Type.values()) {
+				if (counts[type.ordinal()] > 0) {
+					typeCounts.put(type, counts[type.ordinal()]);
+				}
+			}
+			List<Group> result = Lists.newArrayListWithCapacity(groups.size());
+			for (MutableGroup group : groups.values()) {
+				result.add(new Group(group.type, group.id, group.template,
+						group.count, ImmutableList.copyOf(group.samples)));
+			}
+			Collections.sort(result, new Comparator<Group>() {
+				@Override
+				public int compare(Group g1, Group g2) {
+					int byType = SEVERITY_ORDER.indexOf(g1.type)
+							- SEVERITY_ORDER.indexOf(g2.type);
+					return byType != 0 ? byType : g2.count - g1.count;
+				}
+			});
+			return new ValidationSummary(
+					Collections.unmodifiableMap(typeCounts),
+					Collections.unmodifiableList(result), ungroupedCount);
+		}
+	}
+
+	private static final class MutableGroup {
+		private final Type type;
+		private final String id;
+		private final String template;
+		private final List<Issue> samples = Lists.newArrayListWithCapacity(1);
+		private int count = 0;
+
+		private MutableGroup(Issue first, String template) {
+			this.type = first.type;
+			this.id = first.id;
+			this.template = template;
+		}
+	}
+}
@@ -0,0 +1,175 @@
+package org.daisy.validation.epubcheck;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Collections;
+import java.util.EnumMap;
+import java.util.List;
+import java.util.Map;
+
+import org.daisy.validation.epubcheck.Configuration.Engine;
+import org.daisy.validation.epubcheck.Issue.Type;
+
+import com.google.common.io.LineProcessor;
+
+/**
+ * Collects the timestamps and counters of a validation, from its submission
+ * to the pool, to build its {@link ValidationRecord}.
+ * <p>
+ * The timer may be updated on another thread than the one which created it
+ * (e.g. the issues of an embedded validation), so the fields are volatile;
+ * each field has a single writer.
+ */
+final class ValidationTimer {
+
+	private final long submitted = System.nanoTime();
+	private volatile long started = -1;
+	private volatile long processStarting = -1;
+	private volatile long processStarted = -1;
+	private volatile long firstOutput = -1;
+	private volatile long parseNanos = 0;
+	private volatile int lineCount = 0;
+	private volatile boolean timedOut = false;
+	private volatile long predicted = -1;
+	private volatile long deadline = -1;
+	private final int[] issueCounts = new int[Type.values().length];
+
+	/**
+	 * Marks the start of the validation on a pool thread.
+	 */
+	void start() {
+		started = System.nanoTime();
+	}
+
+	/**
+	 * Marks the time right before starting the EPUBCheck process.
+	 */
+	void processStarting() {
+		processStarting = System.nanoTime();
+	}
+
+	/**
+	 * Marks the time right after starting the EPUBCheck process.
+	 */
+	void processStarted() {
+		processStarted = System.nanoTime();
+	}
+
+	/**
+	 * Records the predicted run time and the applied timeout, with adaptive
+	 * timeouts.
+	 */
+	void adaptiveTimeout(long predictedNanos, long deadlineNanos) {
+		predicted = predictedNanos;
+		deadline = deadlineNanos;
+	}
+
+	void timedOut() {
+		timedOut = true;
+	}
+
+	/**
+	 * Returns a line processor delegating to the given one, which records the
+	 * first output time, the number of lines and the time spent parsing.
+	 */
+	<T> LineProcessor<T> meter(final LineProcessor<T> processor) {
+		// passes the character sequences through, see DataPump
+		return new CharLineProcessor<T>() {
+			@Override
+			public boolean processLine(String line) throws IOException {
+				long start = lineStarted();
+				try {
+					return processor.processLine(line);
+				} finally {
+					lineEnded(start);
+				}
+			}
+
+			@Override
+			public boolean processChars(CharSequence line) throws IOException {
+				long start = lineStarted();
+				try {
+					return DataPump.feed(processor, line);
+				} finally {
+					lineEnded(start);
+				}
+			}
+
+			@Override
+			public T getResult() {
+				return processor.getResult();
+			}
+		};
+	}
+
+	private long lineStarted() {
+		long start = System.nanoTime();
+		if (firstOutput < 0) {
+			firstOutput = start;
+		}
+		return start;
+	}
+
+	private void lineEnded(long start) {
+		lineCount++;
+		parseNanos += System.nanoTime() - start;
+	}
+
+	/**
+	 * Returns an issue listener delegating to the given one, which counts the
+	 * issues by type.
+	 */
+	IssueListener count(final IssueListener listener) {
+		return new IssueListener() {
+			@Override
+			public void onIssue(Issue issue) {
+				count(issue);
+				listener.onIssue(issue);
+			}
+		};
+	}
+
+	void count(List<Issue> issues) {
+		if (issues instanceof IssueList) {
+			// without creating the issues
+			synchronized (issueCounts) {
+				for (Type type : Type.values()) {
+					issueCounts[type.ordinal()] += ((IssueList) issues)
+							.count(type);
+				}
+			}
+			return;
+		}
+		for (Issue issue : issues) {
+			count(issue);
+		}
+	}
+
+	private void count(Issue issue) {
+		synchronized (issueCounts) {
+			issueCounts[issue.type.ordinal()]++;
+		}
+	}
+
+	/**
+	 * Returns the record of the validation, which is done.
+	 */
+	ValidationRecord stop(File epub, Engine engine) {
+		long now = System.nanoTime();
+		long origin = processStarted >= 0 ? processStarted : started;
+		Map<Type, Integer> counts = new EnumMap<Type, Integer>(Type.class);
+		synchronized (issueCounts) {
+			for (Type type : Type.values()) {
+				if (issueCounts[type.ordinal()] > 0) {
+					counts.put(type, issueCounts[type.ordinal()]);
+				}
+			}
+		}
+		return new ValidationRecord(epub, engine, started - submitted,
+				processStarted >= 0 ? processStarted - processStarting : -1,
+				firstOutput >= 0 ? firstOutput - origin : -1, now - started,
+				engine == Engine.EMBEDDED ? -1 : parseNanos, lineCount,
+				Collections.unmodifiableMap(counts), timedOut, predicted,
+				deadline);
+	}
+}
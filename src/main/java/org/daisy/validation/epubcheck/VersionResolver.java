@@ -0,0 +1,170 @@
+package org.daisy.validation.epubcheck;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Enumeration;
+import java.util.Properties;
+import java.util.concurrent.TimeUnit;
+import java.util.jar.Attributes;
+import java.util.jar.JarEntry;
+import java.util.jar.JarFile;
+import java.util.jar.Manifest;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.common.base.Preconditions;
+import com.google.common.base.Strings;
+import com.google.common.base.Supplier;
+import com.google.common.io.Closeables;
+
+/**
+ * Resolves the version of the configured EPUBCheck jar from its metadata: the
+ * <code>Implementation-Version</code> of its manifest, or else the version of
+ * its Maven <code>pom.properties</code>. Only when neither is found, the
+ * version is probed by running EPUBCheck.
+ * <p>
+ * The version is cached for the jar path, size and modification time, so that
+ * it is resolved again when the configured jar changes or is replaced. An
+ * unknown version is cached too, but only for a while, so that a missing jar
+ * or a failing probe doesn't run EPUBCheck on every call.
+ */
+final class VersionResolver {
+
+	private static final Logger LOG = LoggerFactory
+			.getLogger(VersionResolver.class);
+
+	static final String UNKNOWN = "unknown";
+
+	private static final String POM_PREFIX = "META-INF/maven/";
+	private static final String POM_SUFFIX = "/pom.properties";
+	private static final long UNKNOWN_RETRY_NANOS = TimeUnit.MINUTES
+			.toNanos(1);
+
+	private final Supplier<String> jar;
+	private final Supplier<String> probe;
+	private final long unknownRetryNanos;
+	/** The jar identity of the cached version. */
+	private String cachedKey = null;
+	private String cachedVersion = null;
+	/** When an unknown version is resolved again, in nanoTime. */
+	private long retryAt = 0;
+
+	/**
+	 * @param jar
+	 *            the path of the EPUBCheck jar
+	 * @param probe
+	 *            the fallback, which returns the version reported by
+	 *            EPUBCheck or <code>null</code>
+	 */
+	VersionResolver(Supplier<String> jar, Supplier<String> probe) {
+		this(jar, probe, UNKNOWN_RETRY_NANOS);
+	}
+
+	/**
+	 * @param unknownRetryNanos
+	 *            how long an unknown version is cached
+	 */
+	VersionResolver(Supplier<String> jar, Supplier<String> probe,
+			long unknownRetryNanos) {
+		this.jar = Preconditions.checkNotNull(jar);
+		this.probe = Preconditions.checkNotNull(probe);
+		this.unknownRetryNanos = unknownRetryNanos;
+	}
+
+	/**
+	 * Returns the version of the configured jar, or {@value #UNKNOWN}.
+	 */
+	synchronized String get() {
+		File jarFile = new File(jar.get());
+		String key = jarFile.getAbsolutePath() + '|' + jarFile.length() + '|'
+				+ jarFile.lastModified();
+		if (key.equals(cachedKey)
+				&& (!UNKNOWN.equals(cachedVersion) || System.nanoTime()
+						- retryAt < 0)) {
+			return cachedVersion;
+		}
+		String version = read(jarFile);
+		if (version == null) {
+			LOG.debug("No version in the metadata of {}, running EPUBCheck",
+					jarFile);
+			version = probe.get();
+		}
+		if (Strings.isNullOrEmpty(version)) {
+			version = UNKNOWN;
+			retryAt = System.nanoTime() + unknownRetryNanos;
+		}
+		cachedKey = key;
+		cachedVersion = version;
+		return version;
+	}
+
+	/**
+	 * Reads the version from the metadata of the given jar, returns
+	 * <code>null</code> if not found.
+	 */
+	static String read(File jarFile) {
+		if (!jarFile.isFile()) {
+			return null;
+		}
+		JarFile jar = null;
+		try {
+			jar = new JarFile(jarFile, false);
+			Manifest manifest = jar.getManifest();
+			if (manifest != null) {
+				String version = manifest.getMainAttributes().getValue(
+						Attributes.Name.IMPLEMENTATION_VERSION);
+				if (!Strings.isNullOrEmpty(version)) {
+					return version.trim();
+				}
+			}
+			return readPomProperties(jar);
+		} catch (IOException e) {
+			LOG.warn("Couldn't read the metadata of {}: {}", jarFile,
+					e.getMessage());
+			return null;
+		} finally {
+			if (jar != null) {
+				try {
+					jar.close();
+				} catch (IOException e) {
+					LOG.debug("Couldn't close {}", jarFile);
+				}
+			}
+		}
+	}
+
+	/**
+	 * Returns the version of the EPUBCheck <code>pom.properties</code>, or of
+	 * the single <code>pom.properties</code> of the jar.
+	 */
+	private static String readPomProperties(JarFile jar) throws IOException {
+		JarEntry found = null;
+		int count = 0;
+		Enumeration<JarEntry> entries = jar.entries();
+		while (entries.hasMoreElements()) {
+			JarEntry entry = entries.nextElement();
+			String name = entry.getName();
+			if (name.startsWith(POM_PREFIX) && name.endsWith(POM_SUFFIX)) {
+				count++;
+				if (found == null || name.endsWith("/epubcheck" + POM_SUFFIX)) {
+					found = entry;
+				}
+			}
+		}
+		if (found == null || count > 1
+				&& !found.getName().endsWith("/epubcheck" + POM_SUFFIX)) {
+			return null;
+		}
+		Properties properties = new Properties();
+		InputStream is = jar.getInputStream(found);
+		try {
+			properties.load(is);
+		} finally {
+			Closeables.closeQuietly(is);
+		}
+		return Strings.emptyToNull(Strings.nullToEmpty(
+				properties.getProperty("version")).trim());
+	}
+}
@@ -0,0 +1,205 @@
+package org.daisy.validation.epubcheck;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.net.URISyntaxException;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.common.base.Charsets;
+import com.google.common.base.Preconditions;
+import com.google.common.base.Supplier;
+import com.google.common.io.Closeables;
+import com.google.common.io.LineProcessor;
+import com.google.common.util.concurrent.UncheckedTimeoutException;
+
+/**
+ * A pool of resident EPUBCheck JVMs (see {@link EpubCheckWorker}), used to
+ * avoid paying for the JVM startup and EPUBCheck initialization on every
+ * validation.
+ * <p>
+ * Workers are spawned lazily, up to the pool size, and are recycled after a
+ * configurable number of jobs, when their used heap exceeds a configurable
+ * threshold, when the configured EPUBCheck jar changes, or when a job times
+ * out.
+ */
+public final class WorkerPool {
+
+	private static final Logger LOG = LoggerFactory.getLogger(WorkerPool.class);
+
+	private final Semaphore permits;
+	private final BlockingQueue<Worker> idle = new LinkedBlockingQueue<Worker>();
+	private final Supplier<String> jar;
+	private final Supplier<Integer> maxJobs;
+	private final Supplier<Long> maxHeap;
+	private volatile boolean shutdown = false;
+
+	/**
+	 * Creates a new pool.
+	 *
+	 * @param size
+	 *            the maximum number of worker JVMs
+	 * @param jar
+	 *            the path to the EPUBCheck jar
+	 * @param maxJobs
+	 *            the number of jobs after which a worker is recycled
+	 * @param maxHeap
+	 *            the used heap size (in MB) above which a worker is recycled
+	 */
+	public WorkerPool(int size, Supplier<String> jar,
+			Supplier<Integer> maxJobs, Supplier<Long> maxHeap) {
+		Preconditions.checkArgument(size > 0, "Pool size must be positive");
+		this.permits = new Semaphore(size, true);
+		this.jar = Preconditions.checkNotNull(jar);
+		this.maxJobs = Preconditions.checkNotNull(maxJobs);
+		this.maxHeap = Preconditions.checkNotNull(maxHeap);
+	}
+
+	/**
+	 * Validates the given EPUB on a worker JVM and feeds its output to the
+	 * given line processor. Blocks until a worker is available. If the line
+	 * processor stops reading the output, the worker is destroyed.
+	 */
+	public <T> T run(final File epub, final LineProcessor<T> lineProcessor,
+			Long timeout, TimeUnit timeoutUnit) throws InterruptedException,
+			UncheckedTimeoutException, Exception {
+		Preconditions.checkNotNull(epub);
+		Preconditions.checkNotNull(lineProcessor);
+		Preconditions.checkState(!shutdown, "Worker pool is shut down");
+		permits.acquire();
+		final Worker worker;
+		try {
+			worker = checkout();
+		} catch (IOException e) {
+			permits.release();
+			throw e;
+		}
+		boolean healthy = false;
+		DeadlineService.Deadline deadline = DeadlineService.shared().watch(
+				worker.process, timeout, timeoutUnit);
+		try {
+			try {
+				// a worker stopped mid-validation is not reusable
+				healthy = worker.run(epub, lineProcessor);
+			} catch (Exception e) {
+				// reading fails when the worker is destroyed
+				deadline.stop();
+				throw e;
+			}
+			deadline.stop();
+		} finally {
+			checkin(worker, healthy);
+			permits.release();
+		}
+		return lineProcessor.getResult();
+	}
+
+	/**
+	 * Stops all the idle workers. Busy workers are stopped as soon as their
+	 * current job completes.
+	 */
+	public void shutdown() {
+		shutdown = true;
+		Worker worker;
+		while ((worker = idle.poll()) != null) {
+			worker.destroy();
+		}
+	}
+
+	private Worker checkout() throws IOException {
+		Worker worker;
+		while ((worker = idle.poll()) != null) {
+			if (worker.jar.equals(jar.get())) {
+				return worker;
+			}
+			LOG.debug("Recycling worker for outdated jar {}", worker.jar);
+			worker.destroy();
+		}
+		return new Worker(jar.get());
+	}
+
+	private void checkin(Worker worker, boolean healthy) {
+		if (!healthy || shutdown || worker.jobs >= maxJobs.get()
+				|| worker.heap > maxHeap.get() * 1024 * 1024) {
+			LOG.debug("Recycling worker after {} jobs ({} bytes used)",
+					worker.jobs, worker.heap);
+			worker.destroy();
+		} else {
+			idle.offer(worker);
+		}
+	}
+
+	private static String classpath(String jar) throws IOException {
+		try {
+			File self = new File(EpubCheckWorker.class.getProtectionDomain()
+					.getCodeSource().getLocation().toURI());
+			return self.getPath() + File.pathSeparator + jar;
+		} catch (URISyntaxException e) {
+			throw new IOException("Couldn't locate the worker class: "
+					+ e.getMessage());
+		}
+	}
+
+	private static final class Worker {
+
+		private final String jar;
+		private final Process process;
+		private final Utf8LineReader reader;
+		private final Writer writer;
+		private int jobs = 0;
+		private long heap = 0L;
+
+		private Worker(String jar) throws IOException {
+			this.jar = jar;
+			ProcessBuilder processBuilder = new ProcessBuilder(
+					Utils.javaCommand("-cp", classpath(jar),
+							EpubCheckWorker.class.getName()));
+			processBuilder.redirectErrorStream(true);
+			this.process = processBuilder.start();
+			PoolGauges.processStarted();
+			this.reader = new Utf8LineReader(process.getInputStream());
+			this.writer = new OutputStreamWriter(process.getOutputStream(),
+					Charsets.UTF_8);
+		}
+
+		/**
+		 * Returns whether the validation completed, <code>false</code> if the
+		 * line processor stopped reading the output.
+		 */
+		private boolean run(File epub, LineProcessor<?> lineProcessor)
+				throws IOException {
+			jobs++;
+			writer.write(epub.getPath());
+			writer.write('\n');
+			writer.flush();
+			CharSequence line;
+			while ((line = reader.readLine()) != null) {
+				if (Utf8LineReader.startsWith(line, EpubCheckWorker.DONE)) {
+					heap = Long.parseLong(line.subSequence(
+							EpubCheckWorker.DONE.length(), line.length())
+							.toString());
+					return true;
+				}
+				if (!DataPump.feed(lineProcessor, line)) {
+					return false;
+				}
+			}
+			throw new IOException("EPUBCheck worker exited unexpectedly");
+		}
+
+		private void destroy() {
+			Closeables.closeQuietly(writer);
+			process.destroy();
+			PoolGauges.processEnded();
+			Closeables.closeQuietly(process.getInputStream());
+		}
+	}
+}
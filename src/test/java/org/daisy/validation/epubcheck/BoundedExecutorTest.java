@@ -0,0 +1,201 @@
+package org.daisy.validation.epubcheck;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.daisy.validation.epubcheck.Configuration.QueuePolicy;
+import org.junit.After;
+import org.junit.Test;
+
+import com.google.common.base.Suppliers;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Sets;
+import com.google.common.util.concurrent.ListenableFuture;
+
+public class BoundedExecutorTest {
+
+	private final CountDownLatch release = new CountDownLatch(1);
+	private final List<String> started = Collections
+			.synchronizedList(new ArrayList<String>());
+	private BoundedExecutor executor;
+
+	@After
+	public void tearDown() {
+		release.countDown();
+		executor.shutdown();
+	}
+
+	private BoundedExecutor newExecutor(int size, int capacity,
+			QueuePolicy policy) {
+		return new BoundedExecutor(size, Suppliers.ofInstance(capacity),
+				Suppliers.ofInstance(policy), Suppliers.ofInstance(1));
+	}
+
+	private ListenableFuture<String> submit(final String name) {
+		return executor.submit(new Callable<String>() {
+			@Override
+			public String call() throws Exception {
+				release.await();
+				return name;
+			}
+		}, new Callable<String>() {
+			@Override
+			public String call() {
+				return name + " rejected";
+			}
+		});
+	}
+
+	private void awaitWaiting(int count) throws InterruptedException {
+		for (int i = 0; i < 100 && executor.waitingCount() != count; i++) {
+			Thread.sleep(10);
+		}
+		assertEquals(count, executor.waitingCount());
+	}
+
+	@Test
+	public void testReject() throws Exception {
+		executor = newExecutor(1, 1, QueuePolicy.REJECT);
+		ListenableFuture<String> running = submit("running");
+		awaitWaiting(0);
+		ListenableFuture<String> waiting = submit("waiting");
+		ListenableFuture<String> rejected = submit("new");
+		assertTrue(rejected.isDone());
+		assertEquals("new rejected", rejected.get());
+		release.countDown();
+		assertEquals("running", running.get());
+		assertEquals("waiting", waiting.get());
+	}
+
+	@Test
+	public void testShedOldest() throws Exception {
+		executor = newExecutor(1, 1, QueuePolicy.SHED_OLDEST);
+		ListenableFuture<String> running = submit("running");
+		awaitWaiting(0);
+		ListenableFuture<String> shed = submit("oldest");
+		ListenableFuture<String> accepted = submit("new");
+		assertTrue(shed.isDone());
+		assertEquals("oldest rejected", shed.get());
+		release.countDown();
+		assertEquals("running", running.get());
+		assertEquals("new", accepted.get());
+	}
+
+	@Test
+	public void testBlock() throws Exception {
+		executor = newExecutor(1, 1, QueuePolicy.BLOCK);
+		submit("running");
+		awaitWaiting(0);
+		submit("waiting");
+		final AtomicReference<ListenableFuture<String>> blocked = new AtomicReference<ListenableFuture<String>>();
+		Thread caller = new Thread() {
+			@Override
+			public void run() {
+				blocked.set(submit("blocked"));
+			}
+		};
+		caller.start();
+		caller.join(200);
+		assertTrue(caller.isAlive());
+		release.countDown();
+		caller.join(10000);
+		assertFalse(caller.isAlive());
+		assertEquals("blocked", blocked.get().get(10, TimeUnit.SECONDS));
+	}
+
+	@Test
+	public void testResizeKeepsWaitingTasks() throws Exception {
+		executor = newExecutor(1, 0, QueuePolicy.REJECT);
+		submit("running");
+		awaitWaiting(0);
+		ListenableFuture<String> waiting = executor.submit(
+				new Callable<String>() {
+					@Override
+					public String call() {
+						return "waiting";
+					}
+				}, new Callable<String>() {
+					@Override
+					public String call() {
+						return "rejected";
+					}
+				});
+		awaitWaiting(1);
+		executor.resize(2);
+		assertEquals(2, executor.size());
+		assertEquals("waiting", waiting.get(10, TimeUnit.SECONDS));
+		executor.resize(1);
+		assertEquals(1, executor.size());
+	}
+
+	private ListenableFuture<String> submit(final String name,
+			Priority priority, String tenant) {
+		return executor.submit(new Callable<String>() {
+			@Override
+			public String call() throws Exception {
+				started.add(name);
+				release.await();
+				return name;
+			}
+		}, new Callable<String>() {
+			@Override
+			public String call() {
+				return name + " rejected";
+			}
+		}, priority, tenant);
+	}
+
+	@Test
+	public void testInteractiveFirst() throws Exception {
+		executor = newExecutor(1, 0, QueuePolicy.REJECT);
+		submit("running", Priority.BULK, null);
+		awaitWaiting(0);
+		submit("bulk", Priority.BULK, null);
+		ListenableFuture<String> last = submit("interactive",
+				Priority.INTERACTIVE, null);
+		release.countDown();
+		last.get(10, TimeUnit.SECONDS);
+		assertEquals(Lists.newArrayList("running", "interactive"),
+				started.subList(0, 2));
+	}
+
+	@Test
+	public void testReservedThreads() throws Exception {
+		executor = newExecutor(2, 0, QueuePolicy.REJECT);
+		submit("bulk1", Priority.BULK, null);
+		submit("bulk2", Priority.BULK, null);
+		awaitWaiting(1);
+		submit("interactive", Priority.INTERACTIVE, null);
+		awaitWaiting(1);
+		for (int i = 0; i < 100 && started.size() < 2; i++) {
+			Thread.sleep(10);
+		}
+		// the two threads start concurrently
+		assertEquals(Sets.newHashSet("bulk1", "interactive"),
+				Sets.newHashSet(started));
+	}
+
+	@Test
+	public void testTenantsInTurn() throws Exception {
+		executor = newExecutor(1, 0, QueuePolicy.REJECT);
+		submit("running", Priority.BULK, null);
+		awaitWaiting(0);
+		submit("a1", Priority.BULK, "a");
+		submit("a2", Priority.BULK, "a");
+		ListenableFuture<String> last = submit("a3", Priority.BULK, "a");
+		submit("b1", Priority.BULK, "b");
+		release.countDown();
+		last.get(10, TimeUnit.SECONDS);
+		assertEquals(Lists.newArrayList("running", "a1", "b1", "a2", "a3"),
+				started);
+	}
+}
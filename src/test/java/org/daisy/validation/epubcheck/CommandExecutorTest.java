@@ -0,0 +1,120 @@
+package org.daisy.validation.epubcheck;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.junit.Test;
+
+import com.google.common.collect.Lists;
+import com.google.common.io.LineProcessor;
+import com.google.common.util.concurrent.UncheckedTimeoutException;
+
+public class CommandExecutorTest {
+
+	/**
+	 * A process printing the given lines, then sleeping for the given number
+	 * of seconds.
+	 */
+	public static class Stub {
+		public static void main(String[] args) throws Exception {
+			for (int i = 1; i < args.length; i++) {
+				System.out.println(args[i]);
+			}
+			System.out.flush();
+			Thread.sleep(Long.parseLong(args[0]) * 1000);
+		}
+	}
+
+	private static CommandExecutor<List<String>> stub(String... args) {
+		List<String> command = Lists.newArrayList("java", "-cp",
+				System.getProperty("java.class.path"), Stub.class.getName());
+		command.addAll(Lists.newArrayList(args));
+		return new CommandExecutor<List<String>>(command);
+	}
+
+	private static LineProcessor<List<String>> collector() {
+		return new LineProcessor<List<String>>() {
+			private final List<String> lines = Lists.newArrayList();
+
+			@Override
+			public boolean processLine(String line) {
+				lines.add(line);
+				return true;
+			}
+
+			@Override
+			public List<String> getResult() {
+				return lines;
+			}
+		};
+	}
+
+	@Test
+	public void testRun() throws Exception {
+		assertEquals(Lists.newArrayList("a", "b"),
+				stub("0", "a", "b").run(collector(), 1L, TimeUnit.MINUTES));
+	}
+
+	@Test
+	public void testTimeoutDestroysProcess() throws Exception {
+		LineProcessor<List<String>> lines = collector();
+		long start = System.nanoTime();
+		try {
+			stub("60", "started").run(lines, 2L, TimeUnit.SECONDS);
+			fail("should time out");
+		} catch (UncheckedTimeoutException e) {
+			// expected
+		}
+		assertTrue(System.nanoTime() - start < TimeUnit.SECONDS.toNanos(30));
+		assertEquals(Lists.newArrayList("started"), lines.getResult());
+		assertEquals(0, new PoolGauges().runningProcesses());
+	}
+
+	@Test
+	public void testStopDestroysProcess() throws Exception {
+		LineProcessor<List<String>> lines = new LineProcessor<List<String>>() {
+			private final List<String> lines = Lists.newArrayList();
+
+			@Override
+			public boolean processLine(String line) {
+				lines.add(line);
+				return !line.equals("stop");
+			}
+
+			@Override
+			public List<String> getResult() {
+				return lines;
+			}
+		};
+		long start = System.nanoTime();
+		assertEquals(Lists.newArrayList("a", "stop"),
+				stub("60", "a", "stop", "b").run(lines, 1L, TimeUnit.MINUTES));
+		assertTrue(System.nanoTime() - start < TimeUnit.SECONDS.toNanos(30));
+		assertEquals(0, new PoolGauges().runningProcesses());
+	}
+
+	@Test
+	public void testInterruptDestroysProcess() throws Exception {
+		final AtomicReference<Exception> thrown = new AtomicReference<Exception>();
+		Thread thread = new Thread() {
+			@Override
+			public void run() {
+				try {
+					stub("60").run(collector(), 1L, TimeUnit.MINUTES);
+				} catch (Exception e) {
+					thrown.set(e);
+				}
+			}
+		};
+		thread.start();
+		Thread.sleep(1000);
+		thread.interrupt();
+		thread.join(30000);
+		assertTrue(thrown.get() instanceof InterruptedException);
+	}
+}
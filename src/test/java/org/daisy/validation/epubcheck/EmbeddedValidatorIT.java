@@ -0,0 +1,118 @@
+package org.daisy.validation.epubcheck;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+import java.io.File;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import org.daisy.validation.epubcheck.Issue.Type;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.google.common.collect.Lists;
+import com.google.common.util.concurrent.UncheckedTimeoutException;
+
+public class EmbeddedValidatorIT {
+
+	private EmbeddedValidator validator;
+
+	@Before
+	public void setUp() throws Exception {
+		validator = new EmbeddedValidator(new File(new Configuration().jar.get()));
+	}
+
+	private List<Issue> validate(String path) throws Exception {
+		return validator.validate(new File(path), 1L, TimeUnit.MINUTES);
+	}
+
+	@Test
+	public void testValidWithInfo() throws Exception {
+		List<Issue> issues = validate("src/test/resources/epub/valid-info.epub");
+		assertEquals(2, issues.size());
+		assertEquals(Issue.Type.EPUB_VERSION, issues.get(0).type);
+		assertEquals(Issue.Type.INFO, issues.get(1).type);
+		assertEquals("OPF declares type 'edupub', validating using profile 'EDUPUB'.", issues.get(1).txt);
+	}
+
+	@Test
+	public void testInvalid() throws Exception {
+		List<Issue> issues = validate("src/test/resources/epub/invalid-ncx.epub");
+		assertEquals(3, issues.size());
+		assertEquals(Issue.Type.ERROR, issues.get(1).type);
+		assertEquals(Issue.Type.ERROR, issues.get(2).type);
+		assertEquals("Fragment identifier is not defined.", issues.get(2).txt);
+		assertEquals("EPUB/lorem.ncx", issues.get(2).file);
+		assertEquals(20, issues.get(1).lineNo);
+		assertEquals(46, issues.get(1).colNo);
+	}
+
+	@Test
+	public void testFileNotFound() throws Exception {
+		List<Issue> issues = validate("foobar.epub");
+		assertEquals(1, issues.size());
+		assertEquals(Type.INTERNAL_ERROR, issues.get(0).type);
+		assertEquals("File not found: 'foobar.epub'", issues.get(0).txt);
+	}
+
+	@Test
+	public void testShutdown() throws Exception {
+		assertEquals(3, validate("src/test/resources/epub/invalid-ncx.epub").size());
+		validator.shutdown();
+		try {
+			validate("src/test/resources/epub/invalid-ncx.epub");
+			fail();
+		} catch (IllegalStateException e) {
+			// the class loader is closed
+		}
+	}
+
+	@Test
+	public void testTimeout() throws Exception {
+		final List<Issue> late = Collections
+				.synchronizedList(Lists.<Issue> newArrayList());
+		File epub = new File("src/test/resources/epub/invalid-ncx.epub");
+		StatefulParser parser = new StatefulParser(epub, new IssueListener() {
+			@Override
+			public void onIssue(Issue issue) {
+				late.add(issue);
+			}
+		});
+		try {
+			validator.validate(epub, parser, 1L, TimeUnit.MILLISECONDS);
+			fail();
+		} catch (UncheckedTimeoutException e) {
+			// EPUBCheck keeps running
+		}
+		late.clear();
+		// long enough for the first validation to be done
+		assertEquals(3, validate(epub.getPath()).size());
+		Thread.sleep(1000);
+		assertEquals(0, late.size());
+	}
+
+	@Test
+	public void testConcurrent() throws Exception {
+		ExecutorService executor = Executors.newFixedThreadPool(4);
+		List<Future<List<Issue>>> results = Lists.newArrayList();
+		for (int i = 0; i < 8; i++) {
+			results.add(executor.submit(new Callable<List<Issue>>() {
+				@Override
+				public List<Issue> call() throws Exception {
+					return validate("src/test/resources/epub/invalid-ncx.epub");
+				}
+			}));
+		}
+		for (Future<List<Issue>> result : results) {
+			assertEquals(3, result.get().size());
+		}
+		executor.shutdown();
+	}
+
+}
@@ -2,14 +2,38 @@ package org.daisy.validation.epubcheck;
 
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
 
+import java.io.File;
+import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Collections;
+import java.util.Enumeration;
 import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
 
 import org.daisy.validation.epubcheck.Issue.Type;
 import org.junit.Before;
 import org.junit.Test;
 
+import com.google.common.base.Charsets;
+import com.google.common.collect.Lists;
+import com.google.common.io.ByteStreams;
+import com.google.common.io.Files;
+import com.google.common.util.concurrent.FutureCallback;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+
 public class EpubCheckIT {
 
     @Before
@@ -50,6 +74,206 @@ public class EpubCheckIT {
         assertEquals(46, issues.get(1).colNo);
     }
 
+    /**
+     * Unpacks the given EPUB to a new temporary directory.
+     */
+    static File unpack(File epub) throws IOException {
+        File dir = Files.createTempDir();
+        ZipFile zip = new ZipFile(epub);
+        try {
+            Enumeration<? extends ZipEntry> entries = zip.entries();
+            while (entries.hasMoreElements()) {
+                ZipEntry entry = entries.nextElement();
+                File file = new File(dir, entry.getName());
+                if (!entry.isDirectory()) {
+                    Files.createParentDirs(file);
+                    InputStream in = zip.getInputStream(entry);
+                    OutputStream out = new FileOutputStream(file);
+                    try {
+                        ByteStreams.copy(in, out);
+                    } finally {
+                        in.close();
+                        out.close();
+                    }
+                }
+            }
+        } finally {
+            zip.close();
+        }
+        return dir;
+    }
+
+    @Test
+    public void testValidateDirectory() throws Exception {
+        File dir = unpack(new File("src/test/resources/epub/invalid-ncx.epub"));
+        List<Issue> issues = EpubCheckInvoker.run(dir.getPath());
+        assertEquals(3, issues.size());
+        assertEquals(Issue.Type.EPUB_VERSION, issues.get(0).type);
+        assertEquals(Issue.Type.ERROR, issues.get(2).type);
+        assertEquals("EPUB/lorem.ncx", issues.get(2).file);
+        assertEquals(20, issues.get(1).lineNo);
+    }
+
+    @Test
+    public void testValidateDirectoryEditedInFlight() throws Exception {
+        File dir = unpack(new File("src/test/resources/epub/invalid-ncx.epub"));
+        EpubCheckInvoker invoker = new EpubCheckInvoker();
+        ListenableFuture<List<Issue>> first = invoker.validateAsync(dir);
+        // saved in place, the modification time of the directory doesn't change
+        Files.write("<ncx", new File(dir, "EPUB/lorem.ncx"), Charsets.UTF_8);
+        ListenableFuture<List<Issue>> second = invoker.validateAsync(dir);
+        assertNotSame(first.get(), second.get());
+        for (Issue issue : second.get()) {
+            assertFalse("Fragment identifier is not defined.".equals(issue.txt));
+        }
+    }
+
+    @Test
+    public void testValidateAsync() throws Exception {
+        ExecutorService callbackExecutor = Executors.newSingleThreadExecutor();
+        final AtomicReference<List<Issue>> callbackResult = new AtomicReference<List<Issue>>();
+        final CountDownLatch done = new CountDownLatch(1);
+        ListenableFuture<List<Issue>> future = new EpubCheckInvoker().validateAsync(new File(
+                "src/test/resources/epub/invalid-ncx.epub"), callbackExecutor);
+        Futures.addCallback(future, new FutureCallback<List<Issue>>() {
+
+            @Override
+            public void onSuccess(List<Issue> result) {
+                callbackResult.set(result);
+                done.countDown();
+            }
+
+            @Override
+            public void onFailure(Throwable t) {
+                done.countDown();
+            }
+        });
+        assertTrue(done.await(1, TimeUnit.MINUTES));
+        assertEquals(3, callbackResult.get().size());
+        assertEquals(3, future.get().size());
+        callbackExecutor.shutdown();
+    }
+
+    @Test
+    public void testValidateWithListener() {
+        final List<Issue> issues = Lists.newArrayList();
+        File epub = new File("src/test/resources/epub/invalid-ncx.epub");
+        new EpubCheckInvoker().validateStreaming(epub, new IssueListener() {
+
+            @Override
+            public void onIssue(Issue issue) {
+                issues.add(issue);
+            }
+        });
+        assertEquals(3, issues.size());
+        assertEquals("EPUB/lorem.ncx", issues.get(2).file);
+    }
+
+    @Test
+    public void testValidateAll() throws Exception {
+        List<File> epubs = Lists.newArrayList(new File("src/test/resources/epub/invalid-ncx.epub"), new File(
+                "src/test/resources/epub/valid.epub"), new File("src/test/resources/epub/valid-info.epub"));
+        final List<File> validated = Lists.newArrayList();
+        final List<Integer> sizes = Lists.newArrayList();
+        BatchValidator.Stats stats = new EpubCheckInvoker().validateAll(epubs, new BatchValidator.Listener() {
+
+            @Override
+            public void onResult(File epub, List<Issue> issues) {
+                validated.add(epub);
+                sizes.add(issues.size());
+            }
+        }, true);
+        assertEquals(epubs, validated);
+        assertEquals(Lists.newArrayList(3, 1, 2), sizes);
+        assertEquals(3, stats.fileCount);
+        assertEquals(6, stats.issueCount);
+    }
+
+    @Test
+    public void testValidateAllInterrupted() throws Exception {
+        EpubCheckInvoker invoker = new EpubCheckInvoker();
+        List<File> epubs = Collections.nCopies(4, new File("src/test/resources/epub/invalid-ncx.epub"));
+        Thread.currentThread().interrupt();
+        try {
+            new BatchValidator(invoker, 2).run(epubs.iterator(), new BatchValidator.Listener() {
+
+                @Override
+                public void onResult(File epub, List<Issue> issues) {
+                }
+            }, true);
+            fail();
+        } catch (InterruptedException e) {
+            // the validations in flight are cancelled
+        }
+        // much less than an EPUBCheck run
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(2);
+        while ((invoker.gauges().activeTasks() > 0 || invoker.gauges().runningProcesses() > 0)
+                && System.nanoTime() < deadline) {
+            Thread.sleep(10);
+        }
+        assertEquals(0, invoker.gauges().activeTasks());
+        assertEquals(0, invoker.gauges().queuedTasks());
+        assertEquals(0, invoker.gauges().runningProcesses());
+    }
+
+    @Test
+    public void testMetrics() {
+        final List<ValidationRecord> records = Lists.newArrayList();
+        EpubCheckInvoker invoker = new EpubCheckInvoker();
+        invoker.setMetrics(new ValidationMetrics() {
+
+            @Override
+            public void record(ValidationRecord record) {
+                records.add(record);
+            }
+        });
+        invoker.validate(new File("src/test/resources/epub/invalid-ncx.epub"));
+        assertEquals(1, records.size());
+        ValidationRecord record = records.get(0);
+        assertTrue(record.queueWaitNanos >= 0);
+        assertTrue(record.processStartNanos >= 0);
+        assertTrue(record.firstOutputNanos >= 0);
+        assertTrue(record.runNanos >= record.parseNanos);
+        assertTrue(record.lineCount > 3);
+        assertEquals(Integer.valueOf(2), record.issueCounts.get(Type.ERROR));
+        assertEquals(Integer.valueOf(1), record.issueCounts.get(Type.EPUB_VERSION));
+        assertFalse(record.timedOut);
+        assertEquals(0, invoker.gauges().activeTasks());
+        assertEquals(0, invoker.gauges().queuedTasks());
+    }
+
+    @Test
+    public void testCoalesce() throws Exception {
+        final List<ValidationRecord> records = Lists.newArrayList();
+        EpubCheckInvoker invoker = new EpubCheckInvoker();
+        invoker.setMetrics(new ValidationMetrics() {
+
+            @Override
+            public void record(ValidationRecord record) {
+                records.add(record);
+            }
+        });
+        File epub = new File("src/test/resources/epub/invalid-ncx.epub");
+        ListenableFuture<List<Issue>> first = invoker.validateAsync(epub);
+        ListenableFuture<List<Issue>> second = invoker.validateAsync(epub);
+        assertEquals(3, first.get().size());
+        assertEquals(first.get(), second.get());
+        assertEquals(1, records.size());
+    }
+
+    @Test
+    public void testSummarize() {
+        ValidationSummary summary = new EpubCheckInvoker().summarize(new File(
+                "src/test/resources/epub/invalid-ncx.epub"));
+        assertEquals(2, summary.count(Type.ERROR));
+        assertEquals(1, summary.count(Type.EPUB_VERSION));
+        assertEquals(2, summary.groups.size());
+        ValidationSummary.Group errors = summary.groups.get(0);
+        assertEquals("Fragment identifier is not defined.", errors.template);
+        assertEquals(2, errors.count);
+        assertEquals("EPUB/lorem.ncx", errors.samples.get(0).file);
+    }
+
     @Test
     public void test_FileNotFound() throws IOException {
         List<Issue> issues = EpubCheckInvoker.run("foobar.epub");
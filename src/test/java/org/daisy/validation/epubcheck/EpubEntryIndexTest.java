@@ -0,0 +1,106 @@
+package org.daisy.validation.epubcheck;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.List;
+import java.util.Random;
+
+import org.junit.Test;
+
+import com.google.common.collect.Lists;
+import com.google.common.io.Files;
+
+public class EpubEntryIndexTest {
+
+	@Test
+	public void testRead() {
+		EpubEntryIndex index = EpubEntryIndex.read(new File(
+				"src/test/resources/epub/invalid-ncx.epub"));
+		assertTrue(index.entries().contains("EPUB/lorem.ncx"));
+		assertEquals("mimetype", index.entries().get(0));
+	}
+
+	@Test
+	public void testReadNotZip() {
+		EpubEntryIndex index = EpubEntryIndex.read(new File(
+				"src/test/resources/epubcheck-backend.properties"));
+		assertEquals(0, index.size());
+	}
+
+	@Test
+	public void testReadDirectory() throws IOException {
+		File dir = Files.createTempDir();
+		try {
+			Files.createParentDirs(new File(dir, "EPUB/xhtml/a.xhtml"));
+			Files.touch(new File(dir, "EPUB/xhtml/a.xhtml"));
+			Files.touch(new File(dir, "EPUB/package.opf"));
+			Files.touch(new File(dir, "mimetype"));
+			assertEquals(Lists.newArrayList("EPUB/package.opf",
+					"EPUB/xhtml/a.xhtml", "mimetype"), EpubEntryIndex.read(dir)
+					.entries());
+			assertEquals("EPUB/xhtml/a.xhtml", EpubEntryIndex.read(dir)
+					.normalize("./dir.epub/EPUB/xhtml/a.xhtml"));
+		} finally {
+			new File(dir, "EPUB/xhtml/a.xhtml").delete();
+			new File(dir, "EPUB/xhtml").delete();
+			new File(dir, "EPUB/package.opf").delete();
+			new File(dir, "EPUB").delete();
+			new File(dir, "mimetype").delete();
+			dir.delete();
+		}
+	}
+
+	@Test
+	public void testReadNull() {
+		assertEquals(0, EpubEntryIndex.read(null).size());
+	}
+
+	@Test
+	public void testNormalize() {
+		List<String> entries = Lists.newArrayList("mimetype",
+				"EPUB/lorem.xhtml", "EPUB/lorem.css", "EPUB/lorem.opf",
+				"META-INF/container.xml", "lorem.css");
+		EpubEntryIndex index = EpubEntryIndex.of(entries);
+		assertEquals("mimetype", index.normalize("foo/bar/mimetype"));
+		assertEquals("foo/bar/notfound", index.normalize("foo/bar/notfound"));
+		assertEquals("EPUB/lorem.css", index.normalize("a.epub/EPUB/lorem.css"));
+		assertEquals("lorem.css", index.normalize("a.epub/OPS/lorem.css"));
+		assertEquals("", index.normalize(""));
+	}
+
+	@Test
+	public void testNormalizeSameAsLinearScan() {
+		Random random = new Random(42);
+		List<String> entries = Lists.newArrayList();
+		for (int i = 0; i < 500; i++) {
+			entries.add(randomPath(random));
+		}
+		EpubEntryIndex index = EpubEntryIndex.of(entries);
+		for (int i = 0; i < 5000; i++) {
+			String filename = random.nextBoolean() ? "book.epub/"
+					+ entries.get(random.nextInt(entries.size()))
+					: randomPath(random);
+			assertEquals(Utils.normalizeFilename(entries, filename),
+					index.normalize(filename));
+		}
+	}
+
+	private static String randomPath(Random random) {
+		StringBuilder path = new StringBuilder();
+		int segments = 1 + random.nextInt(3);
+		for (int i = 0; i < segments; i++) {
+			if (i > 0) {
+				path.append('/');
+			}
+			path.append("abc".charAt(random.nextInt(3)));
+			if (random.nextBoolean()) {
+				path.append("abc".charAt(random.nextInt(3)));
+			}
+		}
+		return path.toString();
+	}
+
+}
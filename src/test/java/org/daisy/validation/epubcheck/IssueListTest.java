@@ -0,0 +1,142 @@
+package org.daisy.validation.epubcheck;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.util.List;
+
+import org.daisy.validation.epubcheck.Issue.Type;
+import org.junit.Test;
+
+import com.google.common.collect.Lists;
+
+public class IssueListTest {
+
+	private static Issue issue(int i) {
+		return new Issue(Type.values()[i % Type.values().length],
+				i % 3 == 0 ? null : "RSC-" + i % 7, i % 5 == 0 ? null
+						: "EPUB/chapter" + i % 11 + ".xhtml", i, i % 13 - 1,
+				new String("Message " + i % 17));
+	}
+
+	private static void assertSameIssues(List<Issue> expected,
+			List<Issue> actual) {
+		assertEquals(expected.size(), actual.size());
+		for (int i = 0; i < expected.size(); i++) {
+			Issue e = expected.get(i);
+			Issue a = actual.get(i);
+			assertEquals(e.type, a.type);
+			assertEquals(e.id, a.id);
+			assertEquals(e.file, a.file);
+			assertEquals(e.lineNo, a.lineNo);
+			assertEquals(e.colNo, a.colNo);
+			assertEquals(e.txt, a.txt);
+		}
+	}
+
+	@Test
+	public void testInMemory() {
+		List<Issue> expected = Lists.newArrayList();
+		IssueList issues = new IssueList();
+		for (int i = 0; i < 1000; i++) {
+			expected.add(issue(i));
+			issues.add(issue(i));
+		}
+		assertSameIssues(expected, issues);
+		assertEquals(0, issues.spilledCount());
+		// 7 IDs, 11 files and 17 texts
+		assertEquals(35, issues.stringCount());
+	}
+
+	@Test
+	public void testSharedStrings() {
+		IssueList issues = new IssueList();
+		issues.add(issue(1));
+		issues.add(issue(1 + 7 * 11 * 17 * 3 * 5));
+		assertSame(issues.get(0).txt, issues.get(1).txt);
+		assertEquals(3, issues.stringCount());
+	}
+
+	@Test
+	public void testSpill() {
+		List<Issue> expected = Lists.newArrayList();
+		IssueList issues = new IssueList(100);
+		for (int i = 0; i < 10000; i++) {
+			expected.add(issue(i));
+			issues.add(issue(i));
+		}
+		assertEquals(9900, issues.spilledCount());
+		assertSameIssues(expected, issues);
+		assertSameIssues(expected.subList(5000, 6000),
+				issues.subList(5000, 6000));
+		// across blocks of the spill file, backwards
+		for (int i = 9999; i >= 0; i -= 1000) {
+			assertEquals(expected.get(i).lineNo, issues.get(i).lineNo);
+		}
+	}
+
+	@Test
+	public void testSpillDeleted() throws InterruptedException {
+		IssueList issues = new IssueList(10);
+		for (int i = 0; i < 10000; i++) {
+			issues.add(issue(i));
+		}
+		File file = issues.spillFile();
+		assertTrue(file.exists());
+		issues = null;
+		for (int i = 0; i < 100 && file.exists(); i++) {
+			System.gc();
+			Thread.sleep(50);
+		}
+		assertFalse(file.exists());
+	}
+
+	@Test
+	public void testSearch() {
+		IssueList issues = new IssueList(100);
+		for (int i = 0; i < 1000; i++) {
+			issues.add(issue(i));
+		}
+		assertEquals(issue(500), issues.get(500));
+		assertEquals(issue(500).hashCode(), issues.get(500).hashCode());
+		assertEquals(50, issues.indexOf(issue(50)));
+		assertEquals(500, issues.indexOf(issue(500)));
+		assertTrue(issues.contains(issue(999)));
+		assertFalse(issues.contains(issue(1000)));
+	}
+
+	@Test
+	public void testCount() {
+		IssueList issues = new IssueList(100);
+		int[] expected = new int[Type.values().length];
+		for (int i = 0; i < 1000; i++) {
+			issues.add(issue(i));
+			expected[issue(i).type.ordinal()]++;
+		}
+		for (Type type : Type.values()) {
+			assertEquals(expected[type.ordinal()], issues.count(type));
+		}
+	}
+
+	@Test(expected = UnsupportedOperationException.class)
+	public void testSealed() {
+		IssueList issues = new IssueList();
+		issues.add(issue(1));
+		issues.seal();
+		assertEquals(issue(1), issues.get(0));
+		issues.add(issue(2));
+	}
+
+	@Test
+	public void testNullId() {
+		IssueList issues = new IssueList();
+		issues.add(new Issue(Type.INTERNAL_ERROR, "message"));
+		assertNull(issues.get(0).id);
+		assertNull(issues.get(0).file);
+		assertEquals(-1, issues.get(0).lineNo);
+	}
+}
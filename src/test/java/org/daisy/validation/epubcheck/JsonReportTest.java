@@ -0,0 +1,118 @@
+package org.daisy.validation.epubcheck;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.fail;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.StringReader;
+import java.util.List;
+
+import org.daisy.validation.epubcheck.Issue.Type;
+import org.daisy.validation.epubcheck.JsonTokenizer.Token;
+import org.junit.Test;
+
+import com.google.common.collect.Lists;
+
+public class JsonReportTest {
+
+	private static List<Issue> read(String json) throws IOException {
+		final List<Issue> issues = Lists.newArrayList();
+		JsonReport.readIssues(new StringReader(json), new IssueListener() {
+			@Override
+			public void onIssue(Issue issue) {
+				issues.add(issue);
+			}
+		});
+		return issues;
+	}
+
+	@Test
+	public void testRecordedReport() throws IOException {
+		StatefulParser parser = new StatefulParser(null);
+		parser.processReport(new File(
+				"src/test/resources/output/epubcheck-4.1.1.json"));
+		List<Issue> issues = parser.getResult();
+		assertEquals(3, issues.size());
+		assertEquals(Type.EPUB_VERSION, issues.get(0).type);
+		assertEquals("3.0.1", issues.get(0).txt);
+		Issue issue = issues.get(1);
+		assertEquals(Type.ERROR, issue.type);
+		assertEquals("RSC-012", issue.id);
+		assertEquals("EPUB/lorem.ncx", issue.file);
+		assertEquals(20, issue.lineNo);
+		assertEquals(46, issue.colNo);
+		assertEquals("Fragment identifier is not defined.", issue.txt);
+		assertEquals(26, issues.get(2).lineNo);
+	}
+
+	@Test
+	public void testVersion() throws IOException {
+		assertEquals("2.0.1", JsonReport.readVersion(new StringReader(
+				"{\"messages\":[{\"severity\":\"ERROR\",\"message\":\"m\"}],"
+						+ "\"publication\":{\"ePubVersion\":\"2.0.1\"},"
+						+ "\"items\":[")));
+		assertNull(JsonReport.readVersion(new StringReader("{\"messages\":[]}")));
+	}
+
+	@Test
+	public void testMessageWithoutLocation() throws IOException {
+		List<Issue> issues = read("{\"messages\":[{\"ID\":\"PKG-008\","
+				+ "\"severity\":\"FATAL\",\"message\":\"Unable to read\","
+				+ "\"locations\":[]}]}");
+		assertEquals(1, issues.size());
+		assertEquals(Type.FATAL, issues.get(0).type);
+		assertNull(issues.get(0).file);
+		assertEquals(-1, issues.get(0).lineNo);
+	}
+
+	@Test
+	public void testSuppressedMessage() throws IOException {
+		assertEquals(0, read("{\"messages\":[{\"ID\":\"X\",\"severity\":"
+				+ "\"SUPPRESSED\",\"message\":\"m\",\"locations\":[]}]}")
+				.size());
+	}
+
+	@Test
+	public void testEscapes() throws IOException {
+		List<Issue> issues = read("{\"messages\" : [ {\"severity\":\"ERROR\","
+				+ "\"message\":\"a \\\"b\\\" \\\\ \\/ \\u00e9\\n\","
+				+ "\"locations\":[{\"path\":\"x\",\"line\":-1,"
+				+ "\"column\":1.5,\"context\":{\"a\":[true,false,null]}}]}]}");
+		assertEquals("a \"b\" \\ / é\n", issues.get(0).txt);
+		assertEquals(-1, issues.get(0).lineNo);
+		assertEquals(-1, issues.get(0).colNo);
+	}
+
+	@Test
+	public void testTokens() throws IOException {
+		JsonTokenizer json = new JsonTokenizer(new StringReader(
+				" {\"a\" :[1 , \"s\",{}], \"b\":null } "));
+		List<Token> tokens = Lists.newArrayList();
+		Token token;
+		do {
+			token = json.next();
+			tokens.add(token);
+		} while (token != Token.END_DOCUMENT);
+		assertEquals(Lists.newArrayList(Token.BEGIN_OBJECT, Token.NAME,
+				Token.BEGIN_ARRAY, Token.NUMBER, Token.STRING,
+				Token.BEGIN_OBJECT, Token.END_OBJECT, Token.END_ARRAY,
+				Token.NAME, Token.NULL, Token.END_OBJECT, Token.END_DOCUMENT),
+				tokens);
+	}
+
+	@Test
+	public void testMalformed() {
+		for (String json : new String[] { "{\"messages\":[", "{\"a\" 1}",
+				"{\"a\":1,}", "{\"a\":[1 2]}", "{\"a\":tru}", "{\"a\":\"b}",
+				"{\"a\":1]" }) {
+			try {
+				read(json);
+				fail("should fail: " + json);
+			} catch (IOException e) {
+				// expected
+			}
+		}
+	}
+}
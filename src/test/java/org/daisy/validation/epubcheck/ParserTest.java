@@ -1,13 +1,23 @@
 package org.daisy.validation.epubcheck;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
 
+import java.io.File;
+import java.io.IOException;
 import java.util.List;
+import java.util.Random;
 
 import org.junit.Before;
 import org.junit.Test;
 
+import com.google.common.base.Charsets;
+import com.google.common.base.Suppliers;
+import com.google.common.collect.Lists;
+import com.google.common.io.Files;
+
 public class ParserTest {
 	
 	private StatefulParser parser;
@@ -139,4 +149,137 @@ public class ParserTest {
 		
 	}
 
+	@Test
+	public void testListener() {
+		final List<Issue> received = Lists.newArrayList();
+		parser = new StatefulParser(null, new IssueListener() {
+			@Override
+			public void onIssue(Issue issue) {
+				received.add(issue);
+			}
+		});
+		parser.processLine("Validating using EPUB version 2.0.1 rules.");
+		assertEquals(1,received.size());
+		parser.processLine("WARNING(XXX-001): sample.epub/file(-1,-1): message");
+		assertEquals(2,received.size());
+		assertEquals(Issue.Type.WARNING,received.get(1).type);
+		assertEquals(0,parser.getResult().size());
+	}
+
+	private static StatefulParser failFastParser(FailFastPolicy policy) {
+		return new StatefulParser(null, null,
+				Suppliers.ofInstance(EpubEntryIndex.read(null)), 0, policy);
+	}
+
+	@Test
+	public void testFailFastFatal() {
+		parser = failFastParser(new FailFastPolicy(true, 0));
+		assertTrue(parser.processLine("ERROR(RSC-005): a.epub/x(1,2): message"));
+		assertFalse(parser.processLine("FATAL(PKG-008): a.epub/x(-1,-1): message"));
+		assertTrue(parser.isTruncated());
+		assertFalse(parser.processLine("ERROR(RSC-005): a.epub/y(1,2): message"));
+		List<Issue> issues = parser.getResult();
+		assertEquals(3, issues.size());
+		assertEquals(Issue.Type.FATAL, issues.get(1).type);
+		assertEquals(Issue.Type.TRUNCATED, issues.get(2).type);
+	}
+
+	@Test
+	public void testFailFastErrors() {
+		parser = failFastParser(new FailFastPolicy(false, 2));
+		assertTrue(parser.processLine("FATAL(PKG-008): a.epub/x(-1,-1): message"));
+		assertTrue(parser.processLine("WARNING(XXX-001): a.epub/x(-1,-1): message"));
+		assertFalse(parser.processLine("ERROR(RSC-005): a.epub/x(1,2): message"));
+		List<Issue> issues = parser.getResult();
+		assertEquals(4, issues.size());
+		assertEquals(Issue.Type.TRUNCATED, issues.get(3).type);
+		assertEquals("Validation stopped after 2 errors", issues.get(3).txt);
+	}
+
+	@Test
+	public void testFailFastNone() {
+		parser = failFastParser(FailFastPolicy.NONE);
+		assertTrue(parser.processLine("FATAL(PKG-008): a.epub/x(-1,-1): message"));
+		assertFalse(parser.isTruncated());
+		assertEquals(1, parser.getResult().size());
+	}
+
+	@Test
+	public void testSinglePassSameAsRegex_RecordedOutput() throws IOException {
+		List<String> lines = Files.readLines(new File(
+				"src/test/resources/output/epubcheck-4.1.1.txt"), Charsets.UTF_8);
+		assertSameAsRegex(lines);
+	}
+
+	@Test
+	public void testSinglePassSameAsRegex_Mutations() {
+		String[] fragments = { "ERROR", "WARNING", "FATAL", "INFO", "USAGE",
+				"ERR", "(", ")", "(RSC-012)", ": ", ":", " ", "\t", "a.epub/x",
+				"(-1,-1)", "(20,46)", "(12)", "(-)", "(1,)", ",", "-", "42",
+				"message", "EPUBCheck v", "epubcheck V", "Validating using EPUB version ",
+				" rules", ".", "Check finished with errors", "No errors or warnings detected",
+				"Messages: 1 fatal / 2 errors / 3 warnings / 4 info", "MESSAGES: ",
+				"java.lang.NullPointerException: ", "Exception: ",
+				"NoClassDefFoundError: ", "File not found: '", "'", "Caused by:",
+				"Epub Name: ", "epub name:", "Process duration: 12ms", "ms",
+				"\u2028", "\u0085", "\u00e9" };
+		Random random = new Random(42);
+		List<String> lines = Lists.newArrayList();
+		for (int i = 0; i < 20000; i++) {
+			StringBuilder line = new StringBuilder();
+			int count = random.nextInt(7);
+			for (int j = 0; j < count; j++) {
+				line.append(fragments[random.nextInt(fragments.length)]);
+			}
+			lines.add(line.toString());
+		}
+		assertSameAsRegex(lines);
+	}
+
+	private static void assertSameAsRegex(List<String> lines) {
+		StatefulParser expected = new StatefulParser(null, null, true);
+		StatefulParser actual = new StatefulParser(null, null, false);
+		// fed with a reused buffer, as by the DataPump
+		StatefulParser chars = new StatefulParser(null, null, false);
+		StringBuilder buffer = new StringBuilder();
+		for (String line : lines) {
+			String failure = process(expected, line);
+			assertEquals(line, failure, process(actual, line));
+			buffer.setLength(0);
+			buffer.append(line);
+			assertEquals(line, failure, process(chars, buffer));
+		}
+		assertEquals(describe(expected.getResult()),
+				describe(actual.getResult()));
+		assertEquals(describe(expected.getResult()),
+				describe(chars.getResult()));
+	}
+
+	private static String process(StatefulParser parser, String line) {
+		try {
+			parser.processLine(line);
+			return null;
+		} catch (RuntimeException e) {
+			return e.getClass().getName();
+		}
+	}
+
+	private static String process(StatefulParser parser, CharSequence line) {
+		try {
+			parser.processChars(line);
+			return null;
+		} catch (RuntimeException e) {
+			return e.getClass().getName();
+		}
+	}
+
+	private static List<String> describe(List<Issue> issues) {
+		List<String> descriptions = Lists.newArrayList();
+		for (Issue issue : issues) {
+			descriptions.add(issue.type + "|" + issue.file + "|" + issue.lineNo
+					+ "|" + issue.colNo + "|" + issue.txt);
+		}
+		return descriptions;
+	}
+
 }
@@ -0,0 +1,131 @@
+package org.daisy.validation.epubcheck;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.List;
+import java.util.zip.CRC32;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.google.common.base.Charsets;
+import com.google.common.collect.Lists;
+import com.google.common.io.Files;
+
+public class PreflightTest {
+
+	private File file;
+
+	@Before
+	public void setUp() throws IOException {
+		file = File.createTempFile("preflight-", ".epub");
+	}
+
+	@After
+	public void tearDown() {
+		file.delete();
+	}
+
+	/**
+	 * Writes a ZIP file with the given entries, <code>mimetype</code> being
+	 * stored.
+	 */
+	private void writeZip(String... names) throws IOException {
+		ZipOutputStream out = new ZipOutputStream(new FileOutputStream(file));
+		try {
+			for (String name : names) {
+				byte[] content = ("content of " + name).getBytes(Charsets.UTF_8);
+				ZipEntry entry = new ZipEntry(name);
+				if (name.equals("mimetype")) {
+					CRC32 crc = new CRC32();
+					crc.update(content);
+					entry.setMethod(ZipEntry.STORED);
+					entry.setSize(content.length);
+					entry.setCrc(crc.getValue());
+				}
+				out.putNextEntry(entry);
+				out.write(content);
+				out.closeEntry();
+			}
+		} finally {
+			out.close();
+		}
+	}
+
+	private static List<String> ids(Preflight preflight) {
+		List<String> ids = Lists.newArrayList();
+		for (Issue issue : preflight.issues()) {
+			ids.add(issue.type + " " + issue.id);
+		}
+		return ids;
+	}
+
+	@Test
+	public void testValid() {
+		Preflight preflight = Preflight.check(new File(
+				"src/test/resources/epub/valid.epub"), true);
+		assertFalse(preflight.isRejected());
+		assertTrue(preflight.index().entries().contains(Preflight.CONTAINER));
+	}
+
+	@Test
+	public void testNotZip() throws IOException {
+		Files.write("not a zip", file, Charsets.UTF_8);
+		Preflight preflight = Preflight.check(file, true);
+		assertEquals(Lists.newArrayList("ERROR PKG-003", "FATAL PKG-008"),
+				ids(preflight));
+		assertEquals(file.getPath(), preflight.issues().get(1).file);
+		assertNull(preflight.index());
+	}
+
+	@Test
+	public void testEmpty() {
+		assertEquals(Lists.newArrayList("ERROR PKG-003", "FATAL PKG-008"),
+				ids(Preflight.check(file, true)));
+	}
+
+	@Test
+	public void testTruncated() throws IOException {
+		byte[] epub = Files.toByteArray(new File(
+				"src/test/resources/epub/valid.epub"));
+		Files.write(Arrays.copyOf(epub, epub.length / 2), file);
+		assertEquals(Lists.newArrayList("FATAL PKG-008"),
+				ids(Preflight.check(file, true)));
+	}
+
+	@Test
+	public void testNoContainer() throws IOException {
+		writeZip("mimetype", "a.txt");
+		Preflight preflight = Preflight.check(file, true);
+		assertEquals(Lists.newArrayList("FATAL RSC-002", "ERROR RSC-001"),
+				ids(preflight));
+		assertEquals(2, preflight.index().size());
+		writeZip("a.txt", "mimetype");
+		assertEquals(Lists.newArrayList("ERROR PKG-006", "FATAL RSC-002",
+				"ERROR RSC-001"), ids(Preflight.check(file, true)));
+	}
+
+	@Test
+	public void testNoIds() throws IOException {
+		writeZip("mimetype", "a.txt");
+		assertEquals(Lists.newArrayList("FATAL null", "ERROR null"),
+				ids(Preflight.check(file, false)));
+	}
+
+	@Test
+	public void testMimetypeNotFirst() throws IOException {
+		// EPUBCheck goes on validating
+		writeZip(Preflight.CONTAINER, "mimetype");
+		assertFalse(Preflight.check(file, true).isRejected());
+	}
+}
@@ -0,0 +1,117 @@
+package org.daisy.validation.epubcheck;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.google.common.base.Charsets;
+import com.google.common.base.Supplier;
+import com.google.common.io.Files;
+
+public class ReloadableConfigurationTest {
+
+	private static final ReloadableConfiguration.Default SIZE = new ReloadableConfiguration.Default() {
+		@Override
+		public String getName() {
+			return "test.size";
+		}
+
+		@Override
+		public String getValue() {
+			return "1";
+		}
+	};
+
+	private static final class TestConfiguration extends
+			ReloadableConfiguration {
+
+		private int created = 0;
+
+		private TestConfiguration(File file) {
+			super(Arrays.asList(SIZE), file);
+		}
+
+		@Override
+		public String getPropertiesName() {
+			return "test.properties";
+		}
+
+		private final Supplier<Integer> size = new ConfigItem<Integer>(SIZE) {
+			@Override
+			protected Integer newValue(String string, Integer old) {
+				created++;
+				return Integer.valueOf(string.trim());
+			}
+		};
+	}
+
+	private File dir;
+	private File file;
+
+	@Before
+	public void setUp() throws IOException {
+		dir = Files.createTempDir();
+		file = new File(dir, "test.properties");
+	}
+
+	@After
+	public void tearDown() {
+		file.delete();
+		dir.delete();
+	}
+
+	private void write(String properties) throws IOException {
+		Files.write(properties, file, Charsets.ISO_8859_1);
+	}
+
+	@Test
+	public void testDefaults() {
+		TestConfiguration config = new TestConfiguration(file);
+		assertEquals(Integer.valueOf(1), config.size.get());
+	}
+
+	@Test
+	public void testValueReused() throws IOException {
+		write("test.size=42\n");
+		TestConfiguration config = new TestConfiguration(file);
+		Integer size = config.size.get();
+		assertEquals(Integer.valueOf(42), size);
+		assertSame(size, config.size.get());
+		// an unrelated change doesn't recreate the value
+		write("test.size=42\nother=x\n");
+		config.reload();
+		file.setLastModified(file.lastModified() + 2000);
+		config.reload();
+		assertSame(size, config.size.get());
+		assertEquals(1, config.created);
+	}
+
+	@Test
+	public void testBadValue() throws IOException {
+		write("test.size=x\n");
+		TestConfiguration config = new TestConfiguration(file);
+		assertEquals(Integer.valueOf(1), config.size.get());
+	}
+
+	@Test
+	public void testWatchReload() throws Exception {
+		write("test.size=2\n");
+		TestConfiguration config = new TestConfiguration(file);
+		config.initAutoreload();
+		assertEquals(Integer.valueOf(2), config.size.get());
+		write("test.size=3\n");
+		// without a watch service, the file is polled every few seconds
+		long deadline = System.currentTimeMillis() + 30000;
+		while (config.size.get() != 3 && System.currentTimeMillis() < deadline) {
+			Thread.sleep(50);
+		}
+		assertEquals(Integer.valueOf(3), config.size.get());
+	}
+}
@@ -0,0 +1,122 @@
+package org.daisy.validation.epubcheck;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+
+import java.io.File;
+import java.util.List;
+
+import org.daisy.validation.epubcheck.Issue.Type;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.google.common.base.Strings;
+import com.google.common.base.Suppliers;
+import com.google.common.collect.Lists;
+import com.google.common.io.Files;
+
+public class ResultCacheTest {
+
+	private static final File EPUB = new File(
+			"src/test/resources/epub/valid.epub");
+	private static final File OTHER_EPUB = new File(
+			"src/test/resources/epub/invalid-ncx.epub");
+	private static final File JAR = new File("epubcheck.jar");
+
+	private File dir;
+	private List<Issue> issues;
+
+	@Before
+	public void setUp() throws Exception {
+		dir = Files.createTempDir();
+		issues = Lists.newArrayList(new Issue(Type.EPUB_VERSION, "3.0.1"),
+				new Issue(Type.ERROR, "EPUB/lorem.ncx", 20, 46, "message"));
+	}
+
+	@After
+	public void tearDown() throws Exception {
+		for (File file : dir.listFiles()) {
+			file.delete();
+		}
+		dir.delete();
+	}
+
+	@Test
+	public void testMemoryHit() throws Exception {
+		ResultCache cache = new ResultCache(100, Suppliers.ofInstance(""));
+		String key = cache.key(EPUB, JAR);
+		assertNull(cache.get(key));
+		cache.put(key, issues);
+		assertEquals(2, cache.get(cache.key(EPUB, JAR)).size());
+		assertEquals(1, cache.stats().hitCount);
+		assertEquals(1, cache.stats().missCount);
+	}
+
+	@Test
+	public void testIssueListNotCopied() throws Exception {
+		ResultCache cache = new ResultCache(100, Suppliers.ofInstance(""));
+		IssueList list = new IssueList();
+		list.addAll(issues);
+		cache.put(cache.key(EPUB, JAR), list);
+		list.add(new Issue(Type.ERROR, "added"));
+		// not copied
+		assertEquals(3, cache.get(cache.key(EPUB, JAR)).size());
+	}
+
+	@Test
+	public void testKeys() throws Exception {
+		ResultCache cache = new ResultCache(100, Suppliers.ofInstance(""));
+		assertEquals(cache.key(EPUB, JAR), cache.key(EPUB, JAR));
+		assertFalse(cache.key(EPUB, JAR).equals(cache.key(OTHER_EPUB, JAR)));
+		assertFalse(cache.key(EPUB, JAR).equals(
+				cache.key(EPUB, new File("other.jar"))));
+		assertFalse(cache.key(EPUB, JAR, "PROCESS|TEXT").equals(
+				cache.key(EPUB, JAR, "PROCESS|JSON")));
+	}
+
+	@Test
+	public void testEviction() throws Exception {
+		ResultCache cache = new ResultCache(4, Suppliers.ofInstance(""));
+		cache.put(cache.key(EPUB, JAR), issues);
+		cache.put(cache.key(OTHER_EPUB, JAR), issues);
+		assertNull(cache.get(cache.key(EPUB, JAR)));
+		assertEquals(1, cache.stats().evictionCount);
+	}
+
+	@Test
+	public void testDiskTier() throws Exception {
+		ResultCache cache = new ResultCache(100, Suppliers.ofInstance(dir
+				.getPath()));
+		cache.put(cache.key(EPUB, JAR), issues);
+		ResultCache restarted = new ResultCache(100, Suppliers.ofInstance(dir
+				.getPath()));
+		List<Issue> cached = restarted.get(restarted.key(EPUB, JAR));
+		assertEquals(2, cached.size());
+		assertEquals(Type.EPUB_VERSION, cached.get(0).type);
+		assertNull(cached.get(0).file);
+		assertEquals("EPUB/lorem.ncx", cached.get(1).file);
+		assertEquals(20, cached.get(1).lineNo);
+		assertEquals(46, cached.get(1).colNo);
+		assertEquals("message", cached.get(1).txt);
+		assertEquals(1, restarted.stats().diskHitCount);
+	}
+
+	@Test
+	public void testDiskTierLongMessage() throws Exception {
+		String txt = Strings.repeat("\u00e9", 40000);
+		ResultCache cache = new ResultCache(100, Suppliers.ofInstance(dir
+				.getPath()));
+		cache.put(cache.key(EPUB, JAR),
+				Lists.newArrayList(new Issue(Type.ERROR, txt)));
+		// stored again over the existing file
+		cache.put(cache.key(EPUB, JAR),
+				Lists.newArrayList(new Issue(Type.ERROR, txt)));
+		assertEquals(1, dir.listFiles().length);
+		ResultCache restarted = new ResultCache(100, Suppliers.ofInstance(dir
+				.getPath()));
+		assertEquals(txt, restarted.get(restarted.key(EPUB, JAR)).get(0).txt);
+	}
+
+}
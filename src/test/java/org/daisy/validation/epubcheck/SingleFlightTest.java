@@ -0,0 +1,89 @@
+package org.daisy.validation.epubcheck;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Test;
+
+import com.google.common.base.Supplier;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.SettableFuture;
+
+public class SingleFlightTest {
+
+	private final SingleFlight<String, String> flights = new SingleFlight<String, String>();
+	private final AtomicInteger started = new AtomicInteger();
+
+	private Supplier<ListenableFuture<String>> computation(
+			final SettableFuture<String> result) {
+		return new Supplier<ListenableFuture<String>>() {
+			@Override
+			public ListenableFuture<String> get() {
+				started.incrementAndGet();
+				return result;
+			}
+		};
+	}
+
+	@Test
+	public void testJoin() throws Exception {
+		SettableFuture<String> result = SettableFuture.create();
+		ListenableFuture<String> first = flights.join("a", computation(result));
+		ListenableFuture<String> second = flights.join("a",
+				computation(SettableFuture.<String> create()));
+		assertEquals(1, started.get());
+		result.set("done");
+		assertEquals("done", first.get());
+		assertEquals("done", second.get());
+		assertEquals(0, flights.size());
+	}
+
+	@Test
+	public void testDifferentKeys() throws Exception {
+		flights.join("a", computation(SettableFuture.<String> create()));
+		flights.join("b", computation(SettableFuture.<String> create()));
+		assertEquals(2, started.get());
+		assertEquals(2, flights.size());
+	}
+
+	@Test
+	public void testNewFlightAfterCompletion() throws Exception {
+		SettableFuture<String> result = SettableFuture.create();
+		flights.join("a", computation(result));
+		result.set("done");
+		flights.join("a", computation(SettableFuture.<String> create()));
+		assertEquals(2, started.get());
+	}
+
+	@Test
+	public void testCancelledByLastWaiter() throws Exception {
+		SettableFuture<String> result = SettableFuture.create();
+		ListenableFuture<String> first = flights.join("a", computation(result));
+		ListenableFuture<String> second = flights.join("a", computation(result));
+		first.cancel(true);
+		assertFalse(result.isCancelled());
+		assertEquals(1, flights.size());
+		second.cancel(true);
+		assertTrue(result.isCancelled());
+		assertEquals(0, flights.size());
+	}
+
+	@Test
+	public void testFailure() throws Exception {
+		SettableFuture<String> result = SettableFuture.create();
+		ListenableFuture<String> first = flights.join("a", computation(result));
+		result.setException(new IllegalStateException());
+		assertTrue(first.isDone());
+		try {
+			first.get();
+			fail("should fail");
+		} catch (ExecutionException e) {
+			assertTrue(e.getCause() instanceof IllegalStateException);
+		}
+	}
+}
@@ -0,0 +1,64 @@
+package org.daisy.validation.epubcheck;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+
+public class TimeoutModelTest {
+
+	private static final long MB = 1024 * 1024;
+
+	/** 2 s + 1 s per MB + 0.5 s per 100 entries */
+	private static long nanos(long size, int entries) {
+		return TimeUnit.MILLISECONDS.toNanos(2000 + 1000 * size / MB + 5
+				* entries);
+	}
+
+	@Test
+	public void testNoPredictionBeforeMinSamples() {
+		TimeoutModel model = new TimeoutModel();
+		for (int i = 0; i < TimeoutModel.MIN_SAMPLES - 1; i++) {
+			model.observe(i * MB, i * 10, nanos(i * MB, i * 10));
+			assertEquals(-1, model.predict(MB, 10));
+		}
+		model.observe(MB, 10, nanos(MB, 10));
+		assertTrue(model.predict(MB, 10) > 0);
+	}
+
+	@Test
+	public void testLinearFit() {
+		TimeoutModel model = new TimeoutModel();
+		Random random = new Random(42);
+		for (int i = 0; i < 100; i++) {
+			long size = random.nextInt(50) * MB;
+			int entries = random.nextInt(2000);
+			model.observe(size, entries, nanos(size, entries));
+		}
+		long expected = nanos(100 * MB, 500);
+		long predicted = model.predict(100 * MB, 500);
+		assertTrue(predicted + " vs " + expected,
+				Math.abs(predicted - expected) < expected / 100);
+	}
+
+	@Test
+	public void testDeadline() {
+		TimeoutModel model = new TimeoutModel();
+		Random random = new Random(42);
+		for (int i = 0; i < 200; i++) {
+			long size = random.nextInt(50) * MB;
+			int entries = random.nextInt(2000);
+			// up to 50% slower than the linear time
+			model.observe(size, entries, (long) (nanos(size, entries)
+					* (1 + random.nextDouble() / 2)));
+		}
+		long predicted = model.predict(10 * MB, 100);
+		long deadline = model.deadline(predicted, 99, 2);
+		assertTrue(deadline >= 2 * predicted);
+		assertTrue(deadline > model.deadline(predicted, 50, 2));
+		assertTrue(deadline < 4 * predicted);
+	}
+}
@@ -0,0 +1,83 @@
+package org.daisy.validation.epubcheck;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.List;
+
+import org.junit.Test;
+
+import com.google.common.base.Charsets;
+import com.google.common.base.Strings;
+import com.google.common.collect.Lists;
+
+public class Utf8LineReaderTest {
+
+	private static List<String> lines(InputStream is) throws IOException {
+		Utf8LineReader reader = new Utf8LineReader(is);
+		List<String> lines = Lists.newArrayList();
+		CharSequence line;
+		while ((line = reader.readLine()) != null) {
+			lines.add(line.toString());
+		}
+		return lines;
+	}
+
+	private static List<String> lines(String text) throws IOException {
+		return lines(new ByteArrayInputStream(text.getBytes(Charsets.UTF_8)));
+	}
+
+	/**
+	 * A stream returning one byte per read.
+	 */
+	private static InputStream trickle(String text) {
+		return new ByteArrayInputStream(text.getBytes(Charsets.UTF_8)) {
+			@Override
+			public synchronized int read(byte[] b, int off, int len) {
+				return super.read(b, off, Math.min(len, 1));
+			}
+		};
+	}
+
+	@Test
+	public void testTerminators() throws IOException {
+		assertEquals(Lists.newArrayList("a", "b", "", "c", "d"),
+				lines("a\nb\r\n\nc\rd"));
+		assertEquals(Lists.newArrayList("a"), lines("a\n"));
+		assertEquals(Lists.newArrayList("", ""), lines("\r\n\r"));
+		assertEquals(Lists.newArrayList(), lines(""));
+	}
+
+	@Test
+	public void testSplitReads() throws IOException {
+		String text = "ERROR(RSC-005): café.xhtml(1,2): “quoted” 😀\r\nnext\r\n";
+		assertEquals(lines(text), lines(trickle(text)));
+		assertEquals(Lists.newArrayList(
+				"ERROR(RSC-005): café.xhtml(1,2): “quoted” 😀",
+				"next"), lines(trickle(text)));
+	}
+
+	@Test
+	public void testLongLines() throws IOException {
+		String longLine = Strings.repeat("éabc", 50000);
+		assertEquals(Lists.newArrayList("a", longLine, "b"), lines("a\n"
+				+ longLine + "\nb"));
+	}
+
+	@Test
+	public void testMalformed() throws IOException {
+		assertEquals(Lists.newArrayList("a�b"), lines(new ByteArrayInputStream(
+				new byte[] { 'a', (byte) 0xC3, 'b' })));
+	}
+
+	@Test
+	public void testStartsWith() {
+		assertTrue(Utf8LineReader.startsWith("DONE 42", "DONE"));
+		assertFalse(Utf8LineReader.startsWith("DON", "DONE"));
+		assertFalse(Utf8LineReader.startsWith("done", "DONE"));
+	}
+}
@@ -19,6 +19,9 @@ public class UtilsTest {
 				"src/test/resources/epub/valid.epub"));
 		List<String> expected = Lists.newArrayList("mimetype","OPS/content_001.xhtml","OPS/nav.xhtml","OPS/package.opf","META-INF/container.xml", "META-INF/", "OPS/");
 		assertThat(entries, is(expected));
+		// still a mutable list
+		entries.remove("mimetype");
+		assertEquals(6, entries.size());
 	}
 
 	@Test
@@ -0,0 +1,73 @@
+package org.daisy.validation.epubcheck;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+import org.daisy.validation.epubcheck.Issue.Type;
+import org.junit.Test;
+
+public class ValidationSummaryTest {
+
+	@Test
+	public void testTemplate() {
+		assertEquals("Fragment identifier is not defined.",
+				ValidationSummary.template("Fragment identifier is not defined."));
+		assertEquals("element \"*\" not allowed here; expected \"*\"",
+				ValidationSummary.template("element \"foo\" not allowed here; expected \"h1\""));
+		assertEquals("File not found: '*'",
+				ValidationSummary.template("File not found: 'a b.epub'"));
+		assertEquals("Line # is longer than # characters",
+				ValidationSummary.template("Line 12 is longer than 1024 characters"));
+		assertEquals("The file doesn't exist: '*'",
+				ValidationSummary.template("The file doesn't exist: 'x'"));
+		assertEquals("Unbalanced \"quote",
+				ValidationSummary.template("Unbalanced \"quote"));
+	}
+
+	@Test
+	public void testGroups() {
+		ValidationSummary.Builder builder = new ValidationSummary.Builder(2);
+		builder.onIssue(new Issue(Type.EPUB_VERSION, "3.0.1"));
+		for (int i = 0; i < 5; i++) {
+			builder.onIssue(new Issue(Type.ERROR, "a.xhtml", i, 1,
+					"element \"e" + i + "\" not allowed here"));
+		}
+		builder.onIssue(new Issue(Type.ERROR, "RSC-012", "a.ncx", 1, 1,
+				"Fragment identifier is not defined."));
+		builder.onIssue(new Issue(Type.ERROR, "RSC-012", "b.ncx", 1, 1,
+				"Fragment identifier is not defined."));
+		builder.onIssue(new Issue(Type.WARNING, "a.xhtml", 1, 1,
+				"element \"e\" not allowed here"));
+		ValidationSummary summary = builder.build();
+		assertEquals(7, summary.count(Type.ERROR));
+		assertEquals(1, summary.count(Type.WARNING));
+		assertEquals(0, summary.count(Type.FATAL));
+		assertEquals(4, summary.groups.size());
+		ValidationSummary.Group group = summary.groups.get(0);
+		assertEquals(Type.ERROR, group.type);
+		assertNull(group.id);
+		assertEquals("element \"*\" not allowed here", group.template);
+		assertEquals(5, group.count);
+		assertEquals(2, group.samples.size());
+		assertEquals("element \"e1\" not allowed here", group.samples.get(1).txt);
+		group = summary.groups.get(1);
+		assertEquals("RSC-012", group.id);
+		assertEquals(2, group.count);
+		assertEquals(Type.WARNING, summary.groups.get(2).type);
+		assertEquals(Type.EPUB_VERSION, summary.groups.get(3).type);
+	}
+
+	@Test
+	public void testMaxGroups() {
+		ValidationSummary.Builder builder = new ValidationSummary.Builder(1);
+		for (int i = 0; i < ValidationSummary.MAX_GROUPS + 10; i++) {
+			builder.onIssue(new Issue(Type.ERROR, "ID-" + i, null, -1, -1,
+					"message"));
+		}
+		ValidationSummary summary = builder.build();
+		assertEquals(ValidationSummary.MAX_GROUPS, summary.groups.size());
+		assertEquals(10, summary.ungroupedCount);
+		assertEquals(ValidationSummary.MAX_GROUPS + 10,
+				summary.count(Type.ERROR));
+	}
+}
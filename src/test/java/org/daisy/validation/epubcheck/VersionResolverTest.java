@@ -0,0 +1,139 @@
+package org.daisy.validation.epubcheck;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.jar.Attributes;
+import java.util.jar.JarOutputStream;
+import java.util.jar.Manifest;
+import java.util.zip.ZipEntry;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.google.common.base.Charsets;
+import com.google.common.base.Supplier;
+import com.google.common.base.Suppliers;
+
+public class VersionResolverTest {
+
+	private File jar;
+	private final AtomicInteger probes = new AtomicInteger();
+	private VersionResolver resolver;
+
+	@Before
+	public void setUp() throws IOException {
+		jar = File.createTempFile("epubcheck-", ".jar");
+		resolver = new VersionResolver(Suppliers.ofInstance(jar.getPath()),
+				new Supplier<String>() {
+					@Override
+					public String get() {
+						probes.incrementAndGet();
+						return "probed";
+					}
+				});
+	}
+
+	@After
+	public void tearDown() {
+		jar.delete();
+	}
+
+	private void writeJar(String implementationVersion, String... poms)
+			throws IOException {
+		Manifest manifest = new Manifest();
+		manifest.getMainAttributes().put(Attributes.Name.MANIFEST_VERSION,
+				"1.0");
+		if (implementationVersion != null) {
+			manifest.getMainAttributes().put(
+					Attributes.Name.IMPLEMENTATION_VERSION,
+					implementationVersion);
+		}
+		JarOutputStream out = new JarOutputStream(new FileOutputStream(jar),
+				manifest);
+		try {
+			for (int i = 0; i < poms.length; i += 2) {
+				out.putNextEntry(new ZipEntry("META-INF/maven/org.idpf/"
+						+ poms[i] + "/pom.properties"));
+				out.write(("version=" + poms[i + 1] + "\n")
+						.getBytes(Charsets.UTF_8));
+				out.closeEntry();
+			}
+		} finally {
+			out.close();
+		}
+	}
+
+	@Test
+	public void testManifest() throws IOException {
+		writeJar("4.1.1", "epubcheck", "4.0.0");
+		assertEquals("4.1.1", VersionResolver.read(jar));
+	}
+
+	@Test
+	public void testPomProperties() throws IOException {
+		writeJar(null, "epubcheck", "4.2.0");
+		assertEquals("4.2.0", VersionResolver.read(jar));
+		writeJar(null, "jing", "1.0", "epubcheck", "4.2.1", "saxon", "9.8");
+		assertEquals("4.2.1", VersionResolver.read(jar));
+		writeJar(null, "jing", "1.0", "saxon", "9.8");
+		assertNull(VersionResolver.read(jar));
+	}
+
+	@Test
+	public void testProbeFallback() throws IOException {
+		writeJar(null);
+		assertEquals("probed", resolver.get());
+		assertEquals("probed", resolver.get());
+		assertEquals(1, probes.get());
+	}
+
+	@Test
+	public void testMissingJar() {
+		jar.delete();
+		assertNull(VersionResolver.read(jar));
+		assertEquals("probed", resolver.get());
+	}
+
+	@Test
+	public void testCachedUntilChanged() throws IOException {
+		writeJar("4.1.1");
+		jar.setLastModified(1000000000000L);
+		assertEquals("4.1.1", resolver.get());
+		assertEquals("4.1.1", resolver.get());
+		writeJar("4.2.0");
+		jar.setLastModified(2000000000000L);
+		assertEquals("4.2.0", resolver.get());
+		assertEquals(0, probes.get());
+	}
+
+	@Test
+	public void testUnknownCachedForAWhile() throws InterruptedException {
+		final AtomicInteger calls = new AtomicInteger();
+		Supplier<String> probe = new Supplier<String>() {
+			@Override
+			public String get() {
+				calls.incrementAndGet();
+				return null;
+			}
+		};
+		VersionResolver unknown = new VersionResolver(
+				Suppliers.ofInstance("missing.jar"), probe);
+		assertEquals(VersionResolver.UNKNOWN, unknown.get());
+		assertEquals(VersionResolver.UNKNOWN, unknown.get());
+		assertEquals(1, calls.get());
+		VersionResolver retried = new VersionResolver(
+				Suppliers.ofInstance("missing.jar"), probe,
+				TimeUnit.MILLISECONDS.toNanos(10));
+		assertEquals(VersionResolver.UNKNOWN, retried.get());
+		Thread.sleep(20);
+		assertEquals(VersionResolver.UNKNOWN, retried.get());
+		assertEquals(3, calls.get());
+	}
+}
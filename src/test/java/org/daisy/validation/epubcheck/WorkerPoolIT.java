@@ -0,0 +1,62 @@
+package org.daisy.validation.epubcheck;
+
+import static org.junit.Assert.assertEquals;
+
+import java.io.File;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.google.common.base.Suppliers;
+
+public class WorkerPoolIT {
+
+	private WorkerPool pool;
+
+	@Before
+	public void setUp() throws Exception {
+		pool = new WorkerPool(1, new Configuration().jar,
+				Suppliers.ofInstance(2), Suppliers.ofInstance(512L));
+	}
+
+	@After
+	public void tearDown() {
+		pool.shutdown();
+	}
+
+	@Test
+	public void testReusedWorker() throws Exception {
+		for (int i = 0; i < 3; i++) {
+			File epub = new File("src/test/resources/epub/invalid-ncx.epub");
+			List<Issue> issues = pool.run(epub, new StatefulParser(epub), 1L,
+					TimeUnit.MINUTES);
+			assertEquals(3, issues.size());
+			assertEquals(Issue.Type.EPUB_VERSION, issues.get(0).type);
+			assertEquals(Issue.Type.ERROR, issues.get(2).type);
+			assertEquals("EPUB/lorem.ncx", issues.get(2).file);
+		}
+	}
+
+	@Test
+	public void testDirectory() throws Exception {
+		File epub = EpubCheckIT.unpack(new File(
+				"src/test/resources/epub/invalid-ncx.epub"));
+		List<Issue> issues = pool.run(epub, new StatefulParser(epub), 1L,
+				TimeUnit.MINUTES);
+		assertEquals(3, issues.size());
+		assertEquals("EPUB/lorem.ncx", issues.get(2).file);
+	}
+
+	@Test
+	public void testFileNotFound() throws Exception {
+		File epub = new File("foobar.epub");
+		List<Issue> issues = pool.run(epub, new StatefulParser(epub), 1L,
+				TimeUnit.MINUTES);
+		assertEquals(1, issues.size());
+		assertEquals(Issue.Type.INTERNAL_ERROR, issues.get(0).type);
+	}
+
+}